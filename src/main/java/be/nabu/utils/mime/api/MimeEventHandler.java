@@ -0,0 +1,45 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.api;
+
+import java.io.IOException;
+
+import be.nabu.utils.io.api.ByteBuffer;
+
+/**
+ * Receives the parts of a message as they are parsed, the parts themselves are not kept
+ * The events of the children of a multipart come between the start and the end of the multipart
+ */
+public interface MimeEventHandler {
+	/**
+	 * A new part starts, the depth is 0 for the root
+	 */
+	public void onPartStart(Header [] headers, int depth) throws IOException;
+	/**
+	 * A block of the body of the current part, the buffer is reused so you have to consume the data during the call
+	 */
+	public void onBodyBytes(ByteBuffer bytes) throws IOException;
+	/**
+	 * Additional headers that came after the body (e.g. chunked trailers)
+	 */
+	public void onTrailers(Header...headers) throws IOException;
+	/**
+	 * The current part ends, the size includes the headers
+	 */
+	public void onPartEnd(long size) throws IOException;
+}
@@ -0,0 +1,189 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.WritableContainer;
+import be.nabu.utils.mime.api.ModifiableHeader;
+
+/**
+ * A parsed header that only keeps the (unfolded) bytes it was parsed from
+ * The name is parsed when it is first requested, the value and comments are parsed (like MimeHeader.parseHeader() would) when one of them is requested
+ * It is a mime header like any other parsed header, it is only written back out as it came in if it is not modified, 7-bit and does not need folding
+ *
+ * Only headers without encoded words are kept like this, those with encoded words are decoded straight away
+ */
+class ByteHeader extends MimeHeader {
+
+	/**
+	 * Longer lines should be folded
+	 */
+	static final int FOLD_LIMIT = 78;
+	
+	/**
+	 * The header line (without the linefeed), one byte per char
+	 */
+	private byte [] raw;
+	private int separatorIndex;
+	
+	private String rawName;
+	private boolean parsed;
+	
+	private ByteHeader(byte [] raw, int separatorIndex) {
+		this.raw = raw;
+		this.separatorIndex = separatorIndex;
+	}
+	
+	/**
+	 * Creates a byte header if possible (all chars fit in a byte, a name separator and no encoded words), otherwise it is parsed into a mime header
+	 */
+	static ModifiableHeader newHeader(char [] header, int length) throws ParseException, IOException {
+		int separatorIndex = -1;
+		for (int i = 0; i < length; i++) {
+			char current = header[i];
+			if (current > 0xff || (current == '?' && i > 0 && header[i - 1] == '=')) {
+				separatorIndex = -1;
+				break;
+			}
+			else if (current == ':' && separatorIndex < 0) {
+				separatorIndex = i;
+			}
+		}
+		if (separatorIndex < 0) {
+			return MimeHeader.parseHeader(header, 0, length);
+		}
+		byte [] raw = new byte[length];
+		for (int i = 0; i < length; i++) {
+			raw[i] = (byte) header[i];
+		}
+		return new ByteHeader(raw, separatorIndex);
+	}
+	
+	private void parse() {
+		if (!parsed) {
+			char [] chars = new char[raw.length];
+			for (int i = 0; i < raw.length; i++) {
+				chars[i] = (char) (raw[i] & 0xff);
+			}
+			try {
+				MimeHeader header = MimeHeader.parseHeader(chars, 0, chars.length);
+				initialize(header.getName(), header.getValue(), header.getComments());
+			}
+			// we checked beforehand that this can not happen
+			catch (ParseException e) {
+				throw new RuntimeException(e);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			parsed = true;
+		}
+	}
+	
+	@Override
+	public String getName() {
+		if (parsed) {
+			return super.getName();
+		}
+		if (rawName == null) {
+			int start = 0, end = separatorIndex;
+			while (start < end && (raw[start] & 0xff) <= ' ')
+				start++;
+			while (end > start && (raw[end - 1] & 0xff) <= ' ')
+				end--;
+			// well known names share the same instance
+			rawName = HeaderNames.getCanonical(raw, start, end);
+			if (rawName == null) {
+				rawName = new String(raw, start, end - start, StandardCharsets.ISO_8859_1);
+			}
+		}
+		return rawName;
+	}
+
+	@Override
+	public String getValue() {
+		parse();
+		return super.getValue();
+	}
+
+	@Override
+	public String[] getComments() {
+		parse();
+		return super.getComments();
+	}
+
+	@Override
+	public void setName(String name) {
+		parse();
+		super.setName(name);
+	}
+
+	@Override
+	public void setValue(String value) {
+		parse();
+		super.setValue(value);
+	}
+
+	@Override
+	public void setComments(String...comments) {
+		parse();
+		super.setComments(comments);
+	}
+	
+	@Override
+	public void addComment(String...comments) {
+		parse();
+		super.addComment(comments);
+	}
+	
+	/**
+	 * Whether the header can be written as it was parsed: it was not modified, it is 7-bit and it is short enough that it does not need folding
+	 */
+	boolean isVerbatim() {
+		if (getModifications() > 0 || raw.length > FOLD_LIMIT) {
+			return false;
+		}
+		for (byte current : raw) {
+			if (current < ' ' || current > '~') {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the header as it was parsed, without the linefeed
+	 */
+	void write(WritableContainer<ByteBuffer> output) throws IOException {
+		output.write(IOUtils.wrap(raw, true));
+	}
+	
+	@Override
+	public String toString() {
+		if (isVerbatim()) {
+			return new String(raw, StandardCharsets.ISO_8859_1);
+		}
+		parse();
+		return super.toString();
+	}
+}
@@ -0,0 +1,145 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * The parsed (immutable) value of a content disposition header, e.g. attachment; filename="test.txt"
+ * Parameter names are lowercased, a filename*=UTF-8''... (RFC2231) takes precedence over a plain filename
+ */
+public final class ContentDisposition {
+
+	public static final String INLINE = "inline";
+	public static final String ATTACHMENT = "attachment";
+	public static final String FORM_DATA = "form-data";
+
+	private final String type;
+	private final Map<String, String> parameters;
+
+	private ContentDisposition(String type, Map<String, String> parameters) {
+		this.type = type;
+		this.parameters = parameters;
+	}
+
+	/**
+	 * Returns null if there is no header
+	 */
+	public static ContentDisposition parse(Header header) {
+		if (header == null) {
+			return null;
+		}
+		Object cached = HeaderParameters.getCached(header);
+		if (cached instanceof ContentDisposition) {
+			return (ContentDisposition) cached;
+		}
+		ContentDisposition disposition = parse(header.getValue(), header.getComments());
+		HeaderParameters.setCached(header, disposition);
+		return disposition;
+	}
+
+	public static ContentDisposition parse(String value, String...comments) {
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		String type = HeaderParameters.tokenize(value, comments, parameters);
+		return new ContentDisposition(type, parameters.isEmpty() ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(parameters));
+	}
+
+	/**
+	 * The disposition type as it was sent, e.g. "attachment"
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+
+	public String getParameter(String name) {
+		return parameters.get(name.toLowerCase());
+	}
+
+	public String getFilename() {
+		return parameters.get("filename");
+	}
+
+	/**
+	 * The name of the field for form-data
+	 */
+	public String getName() {
+		return parameters.get("name");
+	}
+
+	/**
+	 * The size is informational only, if it is not a valid number it is ignored
+	 */
+	public Long getSize() {
+		String size = parameters.get("size");
+		if (size == null) {
+			return null;
+		}
+		try {
+			return Long.valueOf(size.trim());
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public boolean isInline() {
+		return type.equalsIgnoreCase(INLINE);
+	}
+
+	public boolean isAttachment() {
+		return type.equalsIgnoreCase(ATTACHMENT);
+	}
+
+	public boolean isFormData() {
+		return type.equalsIgnoreCase(FORM_DATA);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(type);
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			builder.append("; ").append(parameter.getKey()).append("=\"").append(parameter.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * type.toLowerCase().hashCode() + parameters.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		else if (!(obj instanceof ContentDisposition)) {
+			return false;
+		}
+		ContentDisposition other = (ContentDisposition) obj;
+		return type.equalsIgnoreCase(other.type) && parameters.equals(other.parameters);
+	}
+}
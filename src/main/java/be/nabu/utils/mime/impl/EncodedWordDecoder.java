@@ -0,0 +1,262 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes the encoded words (=?charset?type?text?=) of rfc2047 in a header value in a single pass
+ * Adjacent encoded words in the same charset are decoded as one: the whitespace between them is dropped and a character (or base64 quantum) that is split over two words is put back together
+ * Malformed encoded words are common in real mail so they do not fail the header (rfc2047 section 6.3): words with an unknown charset or encoding, with invalid characters
+ * or with bytes that are not valid in the charset are left as they are
+ */
+class EncodedWordDecoder {
+
+	/**
+	 * The charset names come from the messages, the cache is capped so they can't fill it up
+	 */
+	private static final int MAX_CHARSETS = 256;
+	
+	private static Map<String, Charset> charsets = new ConcurrentHashMap<String, Charset>();
+	
+	private static final byte [] BASE64 = new byte[128]; static {
+		Arrays.fill(BASE64, (byte) -1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+	
+	/**
+	 * The decoded bytes of the current run of adjacent words
+	 */
+	private Charset charset;
+	private byte [] bytes = new byte[64];
+	private int length;
+	/**
+	 * Where the run of words starts and ends in the value
+	 */
+	private int start, end;
+	
+	/**
+	 * The state of the decoding, this can continue into the next word
+	 */
+	private char type;
+	private int bits, bitCount, escape, escaped;
+	
+	static String decode(String value) {
+		int wordStart = value.indexOf("=?");
+		// nothing is encoded
+		if (wordStart < 0) {
+			return value;
+		}
+		StringBuilder result = new StringBuilder(value.length());
+		EncodedWordDecoder run = null;
+		// everything before this has been processed
+		int copied = 0;
+		while (wordStart >= 0) {
+			// =?charset?type?text?=
+			int charsetEnd = value.indexOf('?', wordStart + 2);
+			int textEnd = charsetEnd < 0 || charsetEnd + 2 >= value.length() || value.charAt(charsetEnd + 2) != '?' ? -1 : value.indexOf("?=", charsetEnd + 3);
+			if (textEnd < 0 || charsetEnd == wordStart + 2 || containsWhitespace(value, wordStart + 2, textEnd)) {
+				wordStart = value.indexOf("=?", wordStart + 2);
+				continue;
+			}
+			// rfc2231 allows a language after the charset
+			int languageIndex = value.indexOf('*', wordStart + 2);
+			String charsetName = value.substring(wordStart + 2, languageIndex >= 0 && languageIndex < charsetEnd ? languageIndex : charsetEnd);
+			Charset charset = getCharset(charsetName);
+			char type = Character.toUpperCase(value.charAt(charsetEnd + 1));
+			// a word we can not decode is left as it is
+			if (charset == null || !isValid(type, value, charsetEnd + 3, textEnd)) {
+				wordStart = value.indexOf("=?", textEnd + 2);
+				continue;
+			}
+			// the whitespace between two encoded words is not part of the value
+			if (run == null || !isWhitespace(value, copied, wordStart)) {
+				if (run != null) {
+					run.flush(result, value);
+					run = null;
+				}
+				result.append(value, copied, wordStart);
+			}
+			if (run != null && !run.charset.equals(charset)) {
+				run.flush(result, value);
+				run = null;
+			}
+			if (run == null) {
+				run = new EncodedWordDecoder();
+				run.charset = charset;
+				run.start = wordStart;
+			}
+			run.decode(type, value, charsetEnd + 3, textEnd);
+			run.end = textEnd + 2;
+			copied = textEnd + 2;
+			wordStart = value.indexOf("=?", copied);
+		}
+		if (run != null) {
+			run.flush(result, value);
+		}
+		result.append(value, copied, value.length());
+		return result.toString();
+	}
+	
+	/**
+	 * Returns null if the charset is not valid or not supported
+	 */
+	private static Charset getCharset(String name) {
+		// charset names are case insensitive
+		String key = name.toLowerCase(Locale.ROOT);
+		Charset charset = charsets.get(key);
+		if (charset == null) {
+			try {
+				charset = Charset.forName(name);
+			}
+			catch (IllegalCharsetNameException e) {
+				return null;
+			}
+			catch (UnsupportedCharsetException e) {
+				return null;
+			}
+			if (charsets.size() < MAX_CHARSETS) {
+				charsets.put(key, charset);
+			}
+		}
+		return charset;
+	}
+	
+	/**
+	 * Whether the text of the word only contains characters that are valid for the type
+	 * A quoted printable escape can continue in the next word so it only has to be valid up to the end of this one
+	 */
+	private static boolean isValid(char type, String value, int from, int to) {
+		if (type == 'B') {
+			for (int i = from; i < to; i++) {
+				char current = value.charAt(i);
+				if (current != '=' && (current >= 128 || BASE64[current] < 0)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		else if (type == 'Q') {
+			for (int i = from; i < to; i++) {
+				if (value.charAt(i) == '=') {
+					for (int j = i + 1; j < Math.min(i + 3, to); j++) {
+						if (Character.digit(value.charAt(j), 16) < 0) {
+							return false;
+						}
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	private static boolean isWhitespace(String value, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (!Character.isWhitespace(value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean containsWhitespace(String value, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (Character.isWhitespace(value.charAt(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void decode(char type, String value, int from, int to) {
+		// a different type starts from scratch
+		if (type != this.type) {
+			this.type = type;
+			bits = bitCount = escape = escaped = 0;
+		}
+		for (int i = from; i < to; i++) {
+			char current = value.charAt(i);
+			if (type == 'B') {
+				// padding ends the quantum, whatever bits are left are not a byte
+				if (current == '=') {
+					bits = bitCount = 0;
+					continue;
+				}
+				int sextet = BASE64[current];
+				bits = (bits << 6) | sextet;
+				bitCount += 6;
+				if (bitCount >= 8) {
+					bitCount -= 8;
+					add((bits >> bitCount) & 0xff);
+				}
+			}
+			else if (escape > 0) {
+				int digit = Character.digit(current, 16);
+				// an escape that was split over two words but does not continue, the character is taken as is
+				if (digit < 0) {
+					escape = escaped = 0;
+					add(current == '_' ? ' ' : current);
+					continue;
+				}
+				escaped = (escaped << 4) | digit;
+				if (++escape > 2) {
+					add(escaped);
+					escape = escaped = 0;
+				}
+			}
+			else if (current == '=') {
+				escape = 1;
+			}
+			else {
+				add(current == '_' ? ' ' : current);
+			}
+		}
+	}
+	
+	private void add(int value) {
+		if (length == bytes.length) {
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		}
+		bytes[length++] = (byte) value;
+	}
+	
+	private void flush(StringBuilder result, String value) {
+		try {
+			result.append(charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT)
+				.decode(java.nio.ByteBuffer.wrap(bytes, 0, length)));
+		}
+		// the words are not valid in their charset, keep them as they are
+		catch (CharacterCodingException e) {
+			result.append(value, start, end);
+		}
+	}
+}
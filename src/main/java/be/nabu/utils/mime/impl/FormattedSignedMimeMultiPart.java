@@ -17,6 +17,7 @@
 
 package be.nabu.utils.mime.impl;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -33,6 +34,7 @@ public class FormattedSignedMimeMultiPart extends MimePartBase<MultiPart> implem
 	private String [] aliases;
 	private boolean includeChains = true;
 	private Map<String, Part> children = new HashMap<String, Part>();
+	private FormattedSignedMimePart signedPart;
 	
 	/**
 	 * You can sign the content part with multiple aliases
@@ -44,7 +46,7 @@ public class FormattedSignedMimeMultiPart extends MimePartBase<MultiPart> implem
 		this.aliases = aliases;
 		
 		int partNumber = 0;
-		FormattedSignedMimePart signedPart = new FormattedSignedMimePart(partToSign);
+		signedPart = new FormattedSignedMimePart(partToSign);
 		signedPart.setParent(this, partNumber++);
 		
 		FormattedSignatureMimePart signaturePart = new FormattedSignatureMimePart(signedPart);
@@ -83,5 +85,12 @@ public class FormattedSignedMimeMultiPart extends MimePartBase<MultiPart> implem
 	public boolean isIncludeChains() {
 		return includeChains;
 	}
+	
+	/**
+	 * Releases the signatures that were calculated when this was last formatted
+	 */
+	public void release() throws IOException {
+		signedPart.release();
+	}
 
 }
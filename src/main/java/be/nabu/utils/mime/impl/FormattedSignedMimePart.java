@@ -28,17 +28,16 @@ import static be.nabu.utils.io.IOUtils.*;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
 import be.nabu.utils.io.api.WritableContainer;
-import be.nabu.utils.io.buffers.FragmentedReadableContainer;
-import be.nabu.utils.io.buffers.bytes.DynamicByteBuffer;
-import be.nabu.utils.io.buffers.bytes.StaticByteBuffer;
 import be.nabu.utils.mime.api.Part;
 import be.nabu.utils.mime.api.PartFormatter;
+import be.nabu.utils.mime.util.MemoryBudget;
+import be.nabu.utils.mime.util.SpillingByteContainer;
 import be.nabu.utils.security.BCSecurityUtils;
 import be.nabu.utils.security.BCSecurityUtils.SignedOutputStream;
 
 public class FormattedSignedMimePart extends MimePartBase<FormattedSignedMimeMultiPart> implements FormattablePart {
 	
-	private DynamicByteBuffer signatures = new DynamicByteBuffer();
+	private SpillingByteContainer signatures = new SpillingByteContainer(MemoryBudget.getInstance());
 	
 	private Part partToSign;
 	
@@ -48,20 +47,26 @@ public class FormattedSignedMimePart extends MimePartBase<FormattedSignedMimeMul
 		this.partToSign = partToSign;
 	}
 	
+	/**
+	 * The signatures of the last format, they can be read as often as needed until the next format or until they are released
+	 */
 	public ReadableContainer<ByteBuffer> getSignatures() {
-		FragmentedReadableContainer<ByteBuffer, StaticByteBuffer> duplicate = signatures.duplicate(true);
-		duplicate.close();
-		return duplicate;
+		return signatures.getReadable();
+	}
+	
+	/**
+	 * Releases the signatures (and their memory), they are empty until the next format
+	 */
+	public void release() throws IOException {
+		signatures.truncate();
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public void format(WritableContainer<ByteBuffer> output) throws FormatException, IOException {
 		try {
-			// remove any data in the signatures
+			// remove the signatures of the previous format
 			signatures.truncate();
-			// mark it so we can reread signatures
-			signatures.mark();
 			List<X509Certificate> certificates = new ArrayList<X509Certificate>();
 			if (getParent().isIncludeChains()) {
 				// include the entire chains
@@ -69,7 +74,7 @@ public class FormattedSignedMimePart extends MimePartBase<FormattedSignedMimeMul
 					certificates.addAll(Arrays.asList(getParent().getKeyStore().getChain(alias)));
 			}
 			// signatures are always detached in s/mime
-			SignedOutputStream signedContainer = BCSecurityUtils.sign(toOutputStream(signatures), BCSecurityUtils.createSignerStore(
+			SignedOutputStream signedContainer = BCSecurityUtils.sign(toOutputStream(unclosable(signatures)), BCSecurityUtils.createSignerStore(
 					BCSecurityUtils.createSignerStore(getParent().getSignatureType(), getParent().getKeyStore(), getParent().getAliases())
 				), false, 
 				BCSecurityUtils.createCertificateStore(certificates.toArray(new X509Certificate[certificates.size()]))
@@ -90,6 +95,26 @@ public class FormattedSignedMimePart extends MimePartBase<FormattedSignedMimeMul
 		}
 	}
 
+	/**
+	 * Closing the signing stream should not release the signatures
+	 */
+	private static WritableContainer<ByteBuffer> unclosable(final WritableContainer<ByteBuffer> parent) {
+		return new WritableContainer<ByteBuffer>() {
+			@Override
+			public long write(ByteBuffer source) throws IOException {
+				return parent.write(source);
+			}
+			@Override
+			public void flush() throws IOException {
+				parent.flush();
+			}
+			@Override
+			public void close() throws IOException {
+				parent.flush();
+			}
+		};
+	}
+
 	@Override
 	public void setFormatter(PartFormatter formatter) {
 		this.formatter = formatter;
@@ -0,0 +1,212 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * The headers of a part, in order, with a case insensitive lookup on name
+ * The array returned by getHeaders() is shared until the headers are changed, so don't modify it
+ * The values that are derived from the headers (content type, boundary,...) are only calculated once, if the headers (or a MimeHeader or parsed header in it) change, they are calculated again
+ */
+public class HeaderMap implements Iterable<Header> {
+
+	private static final int CONTENT_TYPE = 0, BOUNDARY = 1, CHARSET = 2, CONTENT_LENGTH = 3, CONTENT_TRANSFER_ENCODING = 4, TRANSFER_ENCODING = 5, CONTENT_ENCODING = 6;
+	
+	/**
+	 * The header each derived value comes from
+	 */
+	private static final String [] SOURCES = new String [] { "Content-Type", "Content-Type", "Content-Type", "Content-Length", "Content-Transfer-Encoding", "Transfer-Encoding", "Content-Encoding" };
+	
+	private List<Header> headers = new ArrayList<Header>();
+	
+	private Header [] snapshot;
+	
+	/**
+	 * The first header for each (lower case) name
+	 */
+	private Map<String, Header> index;
+	
+	private Derived [] derived = new Derived[SOURCES.length];
+	
+	private static class Derived {
+		private Header header;
+		private String value;
+		private int modifications;
+		private Object result;
+		
+		private boolean isCurrent(Header header) {
+			if (header != this.header) {
+				return false;
+			}
+			else if (header == null) {
+				return true;
+			}
+			// the parameters are in the comments which we can only check on our own headers
+			else if (header instanceof MimeHeader) {
+				return getModifications(header) == modifications;
+			}
+			return header.getValue() == value;
+		}
+	}
+	
+	/**
+	 * The amount of times one of our own headers was modified, other headers are always 0
+	 */
+	static int getModifications(Header header) {
+		if (header instanceof MimeHeader) {
+			return ((MimeHeader) header).getModifications();
+		}
+		return 0;
+	}
+	
+	public HeaderMap(Header...headers) {
+		add(headers);
+	}
+	
+	public void add(Header...headers) {
+		if (headers.length > 0) {
+			this.headers.addAll(Arrays.asList(headers));
+			changed();
+		}
+	}
+	
+	/**
+	 * Removes all the headers with the given names
+	 */
+	public void remove(String...names) {
+		boolean removed = false;
+		for (String name : names) {
+			Iterator<Header> iterator = headers.iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().getName().equalsIgnoreCase(name)) {
+					iterator.remove();
+					removed = true;
+				}
+			}
+		}
+		if (removed) {
+			changed();
+		}
+	}
+	
+	private void changed() {
+		snapshot = null;
+		index = null;
+		Arrays.fill(derived, null);
+	}
+	
+	public Header [] getHeaders() {
+		if (snapshot == null) {
+			snapshot = headers.toArray(new Header[headers.size()]);
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * The first header with the given name (case insensitive)
+	 */
+	public Header getHeader(String name) {
+		if (index == null) {
+			Map<String, Header> index = new HashMap<String, Header>();
+			for (Header header : headers) {
+				String key = HeaderNames.toLowerCase(header.getName());
+				if (!index.containsKey(key)) {
+					index.put(key, header);
+				}
+			}
+			this.index = index;
+		}
+		Header header = index.get(HeaderNames.toLowerCase(name));
+		// a MimeHeader can be renamed
+		if (header != null && !HeaderNames.equals(header.getName(), name)) {
+			index = null;
+			return getHeader(name);
+		}
+		return header;
+	}
+	
+	public int size() {
+		return headers.size();
+	}
+	
+	@Override
+	public Iterator<Header> iterator() {
+		return Arrays.asList(getHeaders()).iterator();
+	}
+	
+	private Derived getDerived(int type) {
+		Header header = getHeader(SOURCES[type]);
+		Derived derived = this.derived[type];
+		if (derived == null || !derived.isCurrent(header)) {
+			derived = new Derived();
+			derived.header = header;
+			if (header != null) {
+				derived.value = header.getValue();
+				derived.modifications = getModifications(header);
+			}
+			Header [] headers = getHeaders();
+			switch(type) {
+				case CONTENT_TYPE: derived.result = MimeUtils.getContentType(headers); break;
+				case BOUNDARY: derived.result = MimeUtils.getBoundary(headers); break;
+				case CHARSET: derived.result = MimeUtils.getCharset(headers); break;
+				case CONTENT_LENGTH: derived.result = MimeUtils.getContentLength(headers); break;
+				case CONTENT_TRANSFER_ENCODING: derived.result = MimeUtils.getContentTransferEncoding(headers); break;
+				case TRANSFER_ENCODING: derived.result = MimeUtils.getTransferEncoding(headers); break;
+				case CONTENT_ENCODING: derived.result = MimeUtils.getContentEncoding(headers); break;
+			}
+			this.derived[type] = derived;
+		}
+		return derived;
+	}
+	
+	public String getContentType() {
+		return (String) getDerived(CONTENT_TYPE).result;
+	}
+	
+	public String getBoundary() {
+		return (String) getDerived(BOUNDARY).result;
+	}
+	
+	public String getCharset() {
+		return (String) getDerived(CHARSET).result;
+	}
+	
+	public Long getContentLength() {
+		return (Long) getDerived(CONTENT_LENGTH).result;
+	}
+	
+	public String getContentTransferEncoding() {
+		return (String) getDerived(CONTENT_TRANSFER_ENCODING).result;
+	}
+	
+	public String getTransferEncoding() {
+		return (String) getDerived(TRANSFER_ENCODING).result;
+	}
+	
+	public String getContentEncoding() {
+		return (String) getDerived(CONTENT_ENCODING).result;
+	}
+}
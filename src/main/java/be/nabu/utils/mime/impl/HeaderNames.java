@@ -0,0 +1,259 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of header names, parsed headers with a registered name share the same (interned) string
+ * Because string literals are interned as well, comparing a parsed name with a literal like "Content-Type" is usually an identity check
+ * Only names that are spelled exactly like the registered one are shared, the case of a header as it was sent is never changed
+ * 
+ * The well known names are registered by default, you can register your own
+ */
+public class HeaderNames {
+
+	public static final String CONTENT_TYPE = "Content-Type";
+	public static final String CONTENT_LENGTH = "Content-Length";
+	public static final String CONTENT_DISPOSITION = "Content-Disposition";
+	public static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+	public static final String CONTENT_ENCODING = "Content-Encoding";
+	public static final String CONTENT_ID = "Content-ID";
+	public static final String CONTENT_RANGE = "Content-Range";
+	public static final String CONTENT_LANGUAGE = "Content-Language";
+	public static final String CONTENT_DESCRIPTION = "Content-Description";
+	public static final String CONTENT_LOCATION = "Content-Location";
+	public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+	public static final String MIME_VERSION = "MIME-Version";
+	public static final String CONNECTION = "Connection";
+	public static final String EXPECT = "Expect";
+	public static final String HOST = "Host";
+	public static final String ACCEPT = "Accept";
+	public static final String ACCEPT_ENCODING = "Accept-Encoding";
+	public static final String ACCEPT_LANGUAGE = "Accept-Language";
+	public static final String ACCEPT_CHARSET = "Accept-Charset";
+	public static final String ACCEPT_RANGES = "Accept-Ranges";
+	public static final String AUTHORIZATION = "Authorization";
+	public static final String CACHE_CONTROL = "Cache-Control";
+	public static final String COOKIE = "Cookie";
+	public static final String SET_COOKIE = "Set-Cookie";
+	public static final String DATE = "Date";
+	public static final String ETAG = "ETag";
+	public static final String EXPIRES = "Expires";
+	public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+	public static final String IF_NONE_MATCH = "If-None-Match";
+	public static final String LAST_MODIFIED = "Last-Modified";
+	public static final String LOCATION = "Location";
+	public static final String ORIGIN = "Origin";
+	public static final String PRAGMA = "Pragma";
+	public static final String RANGE = "Range";
+	public static final String REFERER = "Referer";
+	public static final String SERVER = "Server";
+	public static final String TRAILER = "Trailer";
+	public static final String UPGRADE = "Upgrade";
+	public static final String USER_AGENT = "User-Agent";
+	public static final String VARY = "Vary";
+	public static final String WWW_AUTHENTICATE = "WWW-Authenticate";
+	public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+	public static final String X_CORRELATION_ID = "X-Correlation-Id";
+	public static final String FROM = "From";
+	public static final String TO = "To";
+	public static final String CC = "Cc";
+	public static final String BCC = "Bcc";
+	public static final String SUBJECT = "Subject";
+	public static final String MESSAGE_ID = "Message-ID";
+	public static final String REPLY_TO = "Reply-To";
+	public static final String RECEIVED = "Received";
+	public static final String RETURN_PATH = "Return-Path";
+	public static final String IN_REPLY_TO = "In-Reply-To";
+	public static final String REFERENCES = "References";
+	public static final String SENDER = "Sender";
+	
+	/**
+	 * The registered names by their case insensitive hash, linear probing is used for collisions
+	 */
+	private static volatile String [] table = new String[256];
+	private static int size;
+	
+	/**
+	 * The lower case version of the registered names
+	 */
+	private static Map<String, String> lowerCases = new ConcurrentHashMap<String, String>();
+	
+	static {
+		for (String name : new String [] { CONTENT_TYPE, CONTENT_LENGTH, CONTENT_DISPOSITION, CONTENT_TRANSFER_ENCODING, CONTENT_ENCODING, CONTENT_ID, 
+				CONTENT_RANGE, CONTENT_LANGUAGE, CONTENT_DESCRIPTION, CONTENT_LOCATION, TRANSFER_ENCODING, MIME_VERSION, CONNECTION, EXPECT, HOST, 
+				ACCEPT, ACCEPT_ENCODING, ACCEPT_LANGUAGE, ACCEPT_CHARSET, ACCEPT_RANGES, AUTHORIZATION, CACHE_CONTROL, COOKIE, SET_COOKIE, DATE, ETAG, 
+				EXPIRES, IF_MODIFIED_SINCE, IF_NONE_MATCH, LAST_MODIFIED, LOCATION, ORIGIN, PRAGMA, RANGE, REFERER, SERVER, TRAILER, UPGRADE, 
+				USER_AGENT, VARY, WWW_AUTHENTICATE, X_FORWARDED_FOR, X_CORRELATION_ID, FROM, TO, CC, BCC, SUBJECT, MESSAGE_ID, REPLY_TO, RECEIVED, 
+				RETURN_PATH, IN_REPLY_TO, REFERENCES, SENDER }) {
+			register(name);
+		}
+	}
+	
+	/**
+	 * Registers a header name, the registered name is returned (if it was already registered in another case, that one is kept)
+	 */
+	public static synchronized String register(String name) {
+		String existing = lookup(name, false);
+		if (existing != null) {
+			return existing;
+		}
+		String [] table = HeaderNames.table;
+		// keep the table at most half full
+		if ((size + 1) * 2 > table.length) {
+			String [] names = table;
+			table = new String[table.length * 2];
+			for (String current : names) {
+				if (current != null) {
+					put(table, current);
+				}
+			}
+		}
+		else {
+			table = Arrays.copyOf(table, table.length);
+		}
+		name = name.intern();
+		put(table, name);
+		size++;
+		lowerCases.put(name, name.toLowerCase());
+		// publish the new table
+		HeaderNames.table = table;
+		return name;
+	}
+	
+	private static void put(String [] table, String name) {
+		int index = hash(name, 0, name.length()) & (table.length - 1);
+		while (table[index] != null) {
+			index = (index + 1) & (table.length - 1);
+		}
+		table[index] = name;
+	}
+	
+	private static int toLower(int character) {
+		return character >= 'A' && character <= 'Z' ? character + 32 : character;
+	}
+	
+	private static int hash(CharSequence name, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + toLower(name.charAt(i));
+		}
+		return hash;
+	}
+	
+	/**
+	 * Returns the registered name, either the one with exactly the same case or the one that matches case insensitively
+	 */
+	private static String lookup(String name, boolean exactCase) {
+		String [] table = HeaderNames.table;
+		int index = hash(name, 0, name.length()) & (table.length - 1);
+		while (table[index] != null) {
+			String current = table[index];
+			if (exactCase ? current.equals(name) : current.equalsIgnoreCase(name)) {
+				return current;
+			}
+			index = (index + 1) & (table.length - 1);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the registered instance of this name if it is spelled exactly the same, otherwise the name itself
+	 */
+	public static String getCanonical(String name) {
+		String registered = lookup(name, true);
+		return registered == null ? name : registered;
+	}
+	
+	/**
+	 * Whether the name is registered (case insensitive)
+	 */
+	public static boolean isRegistered(String name) {
+		return lookup(name, false) != null;
+	}
+	
+	/**
+	 * Returns the registered name if it is spelled exactly like the chars, otherwise null
+	 */
+	static String getCanonical(char [] chars, int start, int end) {
+		String [] table = HeaderNames.table;
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + toLower(chars[i]);
+		}
+		int index = hash & (table.length - 1);
+		while (table[index] != null) {
+			String current = table[index];
+			if (current.length() == end - start) {
+				int i = 0;
+				while (i < current.length() && current.charAt(i) == chars[start + i]) {
+					i++;
+				}
+				if (i == current.length()) {
+					return current;
+				}
+			}
+			index = (index + 1) & (table.length - 1);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the registered name if it is spelled exactly like the bytes (one byte per char), otherwise null
+	 */
+	static String getCanonical(byte [] bytes, int start, int end) {
+		String [] table = HeaderNames.table;
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + toLower(bytes[i] & 0xff);
+		}
+		int index = hash & (table.length - 1);
+		while (table[index] != null) {
+			String current = table[index];
+			if (current.length() == end - start) {
+				int i = 0;
+				while (i < current.length() && current.charAt(i) == (bytes[start + i] & 0xff)) {
+					i++;
+				}
+				if (i == current.length()) {
+					return current;
+				}
+			}
+			index = (index + 1) & (table.length - 1);
+		}
+		return null;
+	}
+	
+	/**
+	 * The lower case version of the name, for registered names this is calculated only once
+	 */
+	public static String toLowerCase(String name) {
+		String lowerCase = lowerCases.get(name);
+		return lowerCase == null ? name.toLowerCase() : lowerCase;
+	}
+	
+	/**
+	 * Compares two names case insensitively, registered names are usually the same instance
+	 */
+	public static boolean equals(String name, String other) {
+		return name == other || (name != null && name.equalsIgnoreCase(other));
+	}
+}
@@ -0,0 +1,277 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * A single pass tokenizer for the parameters of structured headers (RFC2045 section 5.1) including the extensions of RFC2231:
+ * - quoted strings may contain ";" and escaped characters
+ * - name*=charset'language'percent-encoded-value
+ * - name*0, name*1*,... continuations which are joined in order
+ *
+ * Parameter names are lowercased, an extended value takes precedence over a plain value with the same name
+ * Headers that were constructed with the parameters in the value (e.g. "attachment; filename=test.txt") are tokenized the same as parsed ones
+ */
+final class HeaderParameters {
+
+	private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+	private HeaderParameters() {
+		// static only
+	}
+
+	/**
+	 * Adds the parameters to the given map and returns the primary value (everything before the first parameter)
+	 */
+	static String tokenize(String value, String [] comments, Map<String, String> parameters) {
+		if (value == null) {
+			value = "";
+		}
+		int primaryEnd = nextSeparator(value, 0);
+		String primary = trim(value, 0, primaryEnd);
+		Map<String, TreeMap<Integer, Segment>> continuations = tokenize(value, primaryEnd + 1, parameters, null);
+		if (comments != null) {
+			for (String comment : comments) {
+				if (comment != null) {
+					continuations = tokenize(comment, 0, parameters, continuations);
+				}
+			}
+		}
+		if (continuations != null) {
+			for (Map.Entry<String, TreeMap<Integer, Segment>> entry : continuations.entrySet()) {
+				parameters.put(entry.getKey(), join(entry.getValue()));
+			}
+		}
+		return primary;
+	}
+
+	private static Map<String, TreeMap<Integer, Segment>> tokenize(String string, int index, Map<String, String> parameters, Map<String, TreeMap<Integer, Segment>> continuations) {
+		int length = string.length();
+		while (index < length) {
+			// skip leading whitespace and empty parameters
+			char current = string.charAt(index);
+			if (current <= ' ' || current == ';') {
+				index++;
+				continue;
+			}
+			int nameStart = index;
+			while (index < length && string.charAt(index) != '=' && string.charAt(index) != ';') {
+				index++;
+			}
+			// a parameter without a value is invalid
+			if (index >= length || string.charAt(index) == ';') {
+				continue;
+			}
+			String name = trim(string, nameStart, index).toLowerCase();
+			index++;
+			while (index < length && string.charAt(index) <= ' ') {
+				index++;
+			}
+			String parameterValue;
+			if (index < length && string.charAt(index) == '"') {
+				StringBuilder builder = new StringBuilder();
+				index++;
+				while (index < length && string.charAt(index) != '"') {
+					current = string.charAt(index++);
+					if (current == '\\' && index < length) {
+						current = string.charAt(index++);
+					}
+					builder.append(current);
+				}
+				parameterValue = builder.toString();
+				// anything between the closing quote and the next parameter is ignored
+				index = nextSeparator(string, index);
+			}
+			else {
+				int valueStart = index;
+				index = nextSeparator(string, index);
+				parameterValue = trim(string, valueStart, index);
+				// like before, an empty unquoted value is not a parameter
+				if (parameterValue.isEmpty()) {
+					continue;
+				}
+			}
+			continuations = add(name, parameterValue, parameters, continuations);
+		}
+		return continuations;
+	}
+
+	private static Map<String, TreeMap<Integer, Segment>> add(String name, String value, Map<String, String> parameters, Map<String, TreeMap<Integer, Segment>> continuations) {
+		int star = name.indexOf('*');
+		if (star <= 0) {
+			parameters.put(name, value);
+			return continuations;
+		}
+		boolean extended = name.charAt(name.length() - 1) == '*';
+		int number = 0;
+		// a section number: name*0 or name*0*
+		if (star < name.length() - 1) {
+			int end = extended ? name.length() - 1 : name.length();
+			for (int i = star + 1; i < end; i++) {
+				char current = name.charAt(i);
+				if (current < '0' || current > '9') {
+					// not something we understand, keep it as is
+					parameters.put(name, value);
+					return continuations;
+				}
+				number = number * 10 + (current - '0');
+			}
+		}
+		if (continuations == null) {
+			continuations = new HashMap<String, TreeMap<Integer, Segment>>();
+		}
+		String baseName = name.substring(0, star);
+		TreeMap<Integer, Segment> segments = continuations.get(baseName);
+		if (segments == null) {
+			segments = new TreeMap<Integer, Segment>();
+			continuations.put(baseName, segments);
+		}
+		segments.put(number, new Segment(value, extended));
+		return continuations;
+	}
+
+	private static String join(TreeMap<Integer, Segment> segments) {
+		Charset charset = DEFAULT_CHARSET;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (Map.Entry<Integer, Segment> entry : segments.entrySet()) {
+			String value = entry.getValue().value;
+			int start = 0;
+			if (entry.getValue().extended) {
+				// only the first section states the charset and (optionally) the language
+				if (entry.getKey() == 0) {
+					int charsetEnd = value.indexOf('\'');
+					int languageEnd = charsetEnd < 0 ? -1 : value.indexOf('\'', charsetEnd + 1);
+					if (languageEnd >= 0) {
+						charset = getCharset(value.substring(0, charsetEnd));
+						start = languageEnd + 1;
+					}
+				}
+				for (int i = start; i < value.length(); i++) {
+					char current = value.charAt(i);
+					int high, low;
+					if (current == '%' && i + 2 < value.length() && (high = Character.digit(value.charAt(i + 1), 16)) >= 0 && (low = Character.digit(value.charAt(i + 2), 16)) >= 0) {
+						output.write((high << 4) | low);
+						i += 2;
+					}
+					else {
+						write(output, current, charset);
+					}
+				}
+			}
+			else {
+				for (int i = 0; i < value.length(); i++) {
+					write(output, value.charAt(i), charset);
+				}
+			}
+		}
+		return new String(output.toByteArray(), charset);
+	}
+
+	private static void write(ByteArrayOutputStream output, char character, Charset charset) {
+		if (character < 0x80) {
+			output.write(character);
+		}
+		else {
+			byte [] bytes = String.valueOf(character).getBytes(charset);
+			output.write(bytes, 0, bytes.length);
+		}
+	}
+
+	private static Charset getCharset(String name) {
+		try {
+			return name.isEmpty() ? DEFAULT_CHARSET : Charset.forName(name);
+		}
+		// unknown charsets are not fatal for a parameter
+		catch (RuntimeException e) {
+			return DEFAULT_CHARSET;
+		}
+	}
+
+	/**
+	 * The index of the next ";" that is not in a quoted string, or the length of the string if there is none
+	 */
+	static int nextSeparator(String string, int index) {
+		boolean quoted = false;
+		for (; index < string.length(); index++) {
+			char current = string.charAt(index);
+			if (quoted && current == '\\') {
+				index++;
+			}
+			else if (current == '"') {
+				quoted = !quoted;
+			}
+			else if (current == ';' && !quoted) {
+				break;
+			}
+		}
+		return Math.min(index, string.length());
+	}
+
+	static String unquote(String value) {
+		value = value.trim();
+		if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+			return value.substring(1, value.length() - 1);
+		}
+		return value;
+	}
+
+	private static String trim(String string, int start, int end) {
+		while (start < end && string.charAt(start) <= ' ')
+			start++;
+		while (end > start && string.charAt(end - 1) <= ' ')
+			end--;
+		return string.substring(start, end);
+	}
+
+	/**
+	 * The structured value (e.g. a media type) of a header is cached on the header itself until it is modified
+	 * Only our own headers can be cached, other implementations are parsed every time
+	 */
+	static Object getCached(Header header) {
+		MimeHeader cacheable = getCacheable(header);
+		return cacheable == null ? null : cacheable.getStructured();
+	}
+
+	static void setCached(Header header, Object structured) {
+		MimeHeader cacheable = getCacheable(header);
+		if (cacheable != null) {
+			cacheable.setStructured(structured);
+		}
+	}
+
+	private static MimeHeader getCacheable(Header header) {
+		return header instanceof MimeHeader ? (MimeHeader) header : null;
+	}
+
+	private static class Segment {
+		private final String value;
+		private final boolean extended;
+
+		private Segment(String value, boolean extended) {
+			this.value = value;
+			this.extended = extended;
+		}
+	}
+}
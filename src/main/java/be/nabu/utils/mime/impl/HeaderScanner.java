@@ -0,0 +1,129 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * Scans blocks of data for headers, you can feed it as much data as you have and it will tell you how much of it belongs to the headers
+ * The rules are those of the original char-by-char loop in MimeUtils.readHeaders():
+ * - a linefeed followed by a space or tab is folding, it is replaced by a single space and any further whitespace is skipped
+ * - the "\r" is ignored entirely so both "\r\n" and "\n" are valid line endings
+ * - two linefeeds in a row end the headers
+ * Bytes are mapped 1-1 on chars, which is what the straight byte-to-char conversion in the parser does as well
+ */
+class HeaderScanner {
+
+	private List<Header> headers = new ArrayList<Header>();
+
+	/**
+	 * The header currently being built
+	 */
+	private char [] header = new char[256];
+	private int headerLength;
+
+	private int previousChar;
+
+	/**
+	 * The amount of linebreaks in a row, 2 means the end of the headers
+	 */
+	private int lineBreaks;
+
+	private boolean unfolding;
+
+	/**
+	 * Scans the chars and returns how many were consumed, this is less than the length if the end of the headers was found
+	 */
+	public int scan(char [] data, int offset, int length) throws ParseException, IOException {
+		int end = offset + length;
+		int i = offset;
+		while (i < end && lineBreaks < 2) {
+			process(data[i++]);
+		}
+		return i - offset;
+	}
+
+	/**
+	 * Scans the bytes and returns how many were consumed, this is less than the length if the end of the headers was found
+	 */
+	public int scan(byte [] data, int offset, int length) throws ParseException, IOException {
+		int end = offset + length;
+		int i = offset;
+		while (i < end && lineBreaks < 2) {
+			process(data[i++] & 0xff);
+		}
+		return i - offset;
+	}
+
+	private void process(int currentChar) throws ParseException, IOException {
+		// you can "fold" a long header by adding a linefeed followed by at least one whitespace
+		if (previousChar == '\n' && (currentChar == ' ' || currentChar == '\t')) {
+			unfolding = true;
+			append(' ');
+		}
+		// we can skip any space when unfolding
+		else if (unfolding && (currentChar == ' ' || currentChar == '\t'))
+			return;
+		// line ending, this "should" be preceeded by a \r but this is not explicitly checked so incorrect line endings are allowed
+		else if (currentChar == '\n')
+			lineBreaks++;
+		else if (currentChar == '\r')
+			return;
+		else {
+			lineBreaks = 0;
+			unfolding = false;
+			// the linefeed was not used to indicate folding, the content we have up till now is a header
+			if (previousChar == '\n' && headerLength > 0) {
+				headers.add(ByteHeader.newHeader(header, headerLength));
+				headerLength = 0;
+			}
+			append((char) currentChar);
+		}
+		previousChar = currentChar;
+	}
+
+	private void append(char character) {
+		if (headerLength == header.length)
+			header = Arrays.copyOf(header, header.length * 2);
+		header[headerLength++] = character;
+	}
+
+	/**
+	 * Whether the two linefeeds that end the headers have been found
+	 */
+	public boolean isFinished() {
+		return lineBreaks >= 2;
+	}
+
+	/**
+	 * Returns the headers found so far, including the one that is being built
+	 */
+	public Header [] getHeaders() throws ParseException, IOException {
+		if (headerLength > 0) {
+			headers.add(ByteHeader.newHeader(header, headerLength));
+			headerLength = 0;
+		}
+		return headers.toArray(new Header[headers.size()]);
+	}
+}
@@ -0,0 +1,167 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * The parsed (immutable) value of a content type header, e.g. multipart/mixed; boundary="abc"
+ * The type and subtype are kept as they were sent, parameter names are lowercased
+ *
+ * Common media types without parameters share a single instance, the parsed value of our own headers is cached on the header until it is modified
+ */
+public final class MediaType {
+
+	private static final Map<String, MediaType> COMMON = new ConcurrentHashMap<String, MediaType>();
+
+	static {
+		for (String common : new String [] {
+				"text/plain", "text/html", "text/xml", "text/css", "text/csv", "text/calendar", "text/javascript", "text/rfc822-headers",
+				"application/octet-stream", "application/json", "application/xml", "application/pdf", "application/zip", "application/javascript",
+				"application/x-www-form-urlencoded", "application/pkcs7-mime", "application/pkcs7-signature", "application/x-pkcs7-mime", "application/x-pkcs7-signature",
+				"multipart/mixed", "multipart/alternative", "multipart/related", "multipart/signed", "multipart/encrypted", "multipart/form-data", "multipart/report", "multipart/byteranges",
+				"message/rfc822", "message/delivery-status", "message/disposition-notification", "image/png", "image/jpeg", "image/gif", "image/svg+xml" }) {
+			COMMON.put(common, new MediaType(common, Collections.<String, String>emptyMap()));
+		}
+	}
+
+	private final String baseType, type, subtype;
+	private final Map<String, String> parameters;
+
+	private MediaType(String baseType, Map<String, String> parameters) {
+		this.baseType = baseType;
+		int index = baseType.indexOf('/');
+		this.type = index < 0 ? baseType : baseType.substring(0, index).trim();
+		this.subtype = index < 0 ? "" : baseType.substring(index + 1).trim();
+		this.parameters = parameters;
+	}
+
+	private MediaType(MediaType common, Map<String, String> parameters) {
+		this.baseType = common.baseType;
+		this.type = common.type;
+		this.subtype = common.subtype;
+		this.parameters = parameters;
+	}
+
+	/**
+	 * Returns null if there is no header
+	 */
+	public static MediaType parse(Header header) {
+		if (header == null) {
+			return null;
+		}
+		Object cached = HeaderParameters.getCached(header);
+		if (cached instanceof MediaType) {
+			return (MediaType) cached;
+		}
+		MediaType mediaType = parse(header.getValue(), header.getComments());
+		HeaderParameters.setCached(header, mediaType);
+		return mediaType;
+	}
+
+	public static MediaType parse(String value, String...comments) {
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		String baseType = HeaderParameters.tokenize(value, comments, parameters);
+		MediaType common = COMMON.get(baseType);
+		if (common != null) {
+			return parameters.isEmpty() ? common : new MediaType(common, Collections.unmodifiableMap(parameters));
+		}
+		return new MediaType(baseType, parameters.isEmpty() ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(parameters));
+	}
+
+	/**
+	 * The type and subtype without parameters, e.g. "text/plain"
+	 */
+	public String getBaseType() {
+		return baseType;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getSubtype() {
+		return subtype;
+	}
+
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+
+	public String getParameter(String name) {
+		return parameters.get(name.toLowerCase());
+	}
+
+	public String getCharset() {
+		return parameters.get("charset");
+	}
+
+	public String getBoundary() {
+		return parameters.get("boundary");
+	}
+
+	public String getName() {
+		return parameters.get("name");
+	}
+
+	public boolean isText() {
+		return type.equalsIgnoreCase("text");
+	}
+
+	public boolean isMultipart() {
+		return type.equalsIgnoreCase("multipart");
+	}
+
+	/**
+	 * Media types are case insensitive
+	 */
+	public boolean is(String baseType) {
+		return this.baseType.equalsIgnoreCase(baseType);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(baseType);
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			builder.append("; ").append(parameter.getKey()).append("=\"").append(parameter.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * baseType.toLowerCase().hashCode() + parameters.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		else if (!(obj instanceof MediaType)) {
+			return false;
+		}
+		MediaType other = (MediaType) obj;
+		return baseType.equalsIgnoreCase(other.baseType) && parameters.equals(other.parameters);
+	}
+}
@@ -0,0 +1,795 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.codec.TranscoderUtils;
+import be.nabu.utils.codec.api.Transcoder;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.CountingReadableContainer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.HeaderProvider;
+import be.nabu.utils.mime.api.MimeEventHandler;
+import be.nabu.utils.mime.util.BoundaryMatcher;
+import be.nabu.utils.mime.util.ChunkedReadableByteContainer;
+import be.nabu.utils.mime.util.DelimitedByteContainer;
+import be.nabu.utils.mime.util.MappedFile;
+import be.nabu.utils.mime.util.ScanningByteContainer;
+import be.nabu.utils.mime.util.TrailingWhitespaceContainer;
+
+/**
+ * The byte-based counterpart of the char-based parsing in the MimeParser, it calculates the exact same offsets, sizes and body offsets
+ * The data is never converted to chars: headers, boundaries and trailing whitespace are all scanned on the bytes themselves
+ *
+ * Instead of stacking a delimited container for every nesting level, all levels share a single scanning container
+ * Level 0 is the raw data, every multipart adds a level for its children which is delimited by its boundary
+ * A level ends when its own delimiter or the delimiter of one of its ancestors is found, much like a delimited container ends when its parent does
+ * All the active boundaries are matched in a single pass so the cost per byte does not depend on the depth
+ *
+ * The parser is not recursive: the multiparts that are still waiting for children are kept on an explicit stack
+ * This also means it can stop at any point and pick up where it left off, which is what the lazy parsing uses
+ *
+ * If there is an event handler, the parts are reported as they are parsed and the body is pushed to it instead of being discarded
+ * In that case no part tree is built and the data does not need to be reopened
+ */
+class MimeByteParser {
+
+	/**
+	 * The straight byte-to-char mapping that is used by the char-based parser is exactly iso-8859-1
+	 */
+	static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Returned when a part is filtered out
+	 */
+	private static final ParsedMimePart SKIPPED = new ParsedMimeBinaryPart();
+
+	private MimeParser parser;
+	private ScanningByteContainer input;
+
+	private BoundaryMatcher matcher = new BoundaryMatcher();
+
+	/**
+	 * The absolute position where a level ended because a delimiter was found, -1 if it has not ended
+	 */
+	private long [] ends = new long[8];
+
+	/**
+	 * We keep track of how far we know the current level can be read without running into a delimiter, this prevents us from scanning the same data over and over
+	 */
+	private long safeEnd = -1;
+
+	/**
+	 * The multiparts that are still parsing children, the last one is the innermost
+	 */
+	private List<Frame> frames = new ArrayList<Frame>();
+
+	/**
+	 * When parsing lazily we need to remember the last part that was returned by a step
+	 */
+	private ParsedMimePart current;
+	private boolean lazy, advancing;
+
+	/**
+	 * Used to reopen the data when parsing lazily
+	 */
+	private ReadableResource resource;
+	private MappedFile mapping;
+
+	private MimeEventHandler handler;
+	/**
+	 * Whether the body is passed to the handler with the content transfer encoding decoded
+	 */
+	private boolean decode;
+
+	MimeByteParser(MimeParser parser, ScanningByteContainer input) {
+		this(parser, input, null);
+	}
+
+	/**
+	 * If the input is read from a mapping, pass it along so we can jump around in it
+	 */
+	MimeByteParser(MimeParser parser, ScanningByteContainer input, MappedFile mapping) {
+		this.parser = parser;
+		this.input = input;
+		this.mapping = mapping;
+		this.ends[0] = -1;
+	}
+
+	ParsedMimePart parse(ReadableResource resource, Header...headers) throws ParseException, IOException {
+		this.resource = resource;
+		ParsedMimePart part = start(null, 0, input.getReadTotal(), resource, true, parser.isRequireKnownContentLength(), headers);
+		while (!frames.isEmpty()) {
+			part = step(part);
+		}
+		return part;
+	}
+
+	/**
+	 * Pushes the parts to the handler instead of building a tree
+	 */
+	void parse(MimeEventHandler handler, boolean decode, Header...headers) throws ParseException, IOException {
+		this.handler = handler;
+		this.decode = decode;
+		parse((ReadableResource) null, headers);
+	}
+
+	/**
+	 * Only reads the headers of the root and, if requested, those of its direct children, the content is never copied or trimmed
+	 * The children are found by skipping from boundary to boundary, a nested multipart is skipped as a whole
+	 */
+	ParsedMimeHead parseHead(ReadableResource resource, boolean children) throws ParseException, IOException {
+		this.resource = resource;
+		Header [] headers = readHeaders();
+		long bodyOffset = input.getReadTotal();
+		List<Header []> childHeaders = null;
+		String boundary = MimeUtils.getBoundary(headers);
+		String transferEncoding = MimeUtils.getTransferEncoding(headers);
+		// we can't look for boundaries in chunked data without dechunking it
+		if (children && boundary != null && (transferEncoding == null || !transferEncoding.equalsIgnoreCase("chunked")) && parser.newHandler(MimeUtils.getContentType(headers).toLowerCase()) instanceof ParsedMimeMultiPart) {
+			childHeaders = new ArrayList<Header []>();
+			byte [] boundaryBytes = boundary.getBytes(CHARSET);
+			// the content before the first boundary
+			push(boundaryBytes);
+			skip();
+			pop();
+			while (!isLastBoundary()) {
+				push(boundaryBytes);
+				Header [] child = readHeaders();
+				childHeaders.add(child);
+				Long contentLength = MimeUtils.getContentLength(child);
+				if (contentLength == null || !jump(getPosition() + contentLength)) {
+					skip();
+				}
+				pop();
+			}
+		}
+		return new ParsedMimeHead(headers, bodyOffset, childHeaders, resource == null ? input : null, resource);
+	}
+
+	/**
+	 * Only parses the root, the multiparts will ask to advance when their children are needed
+	 * If the data can be reopened at any position (mapped or positional) it is closed in between, otherwise it stays open until the parsing is done
+	 */
+	ParsedMimePart parseLazily(ReadableResource resource, MappedFile mapping, Header...headers) throws ParseException, IOException {
+		this.lazy = true;
+		this.resource = resource;
+		this.mapping = mapping;
+		boolean success = false;
+		try {
+			current = start(null, 0, input.getReadTotal(), resource, true, parser.isRequireKnownContentLength(), headers);
+			ParsedMimePart root = frames.isEmpty() ? current : frames.get(0).multiPart;
+			if (mapping != null) {
+				root.setMapping(mapping);
+			}
+			success = true;
+			return root;
+		}
+		finally {
+			pause(success);
+		}
+	}
+
+	/**
+	 * Parses until the multipart has an additional child or is finished
+	 */
+	void advance(ParsedMimeMultiPart multiPart) throws ParseException, IOException {
+		// reading the content of a part while it is being parsed can ask for the size of a parent that is still parsing
+		if (advancing) {
+			return;
+		}
+		advancing = true;
+		boolean success = false;
+		try {
+			if (input.isSuspended()) {
+				long position = input.getFetchTotal();
+				input.resume(reopen(position));
+			}
+			int count = multiPart.getParsedCount();
+			while (multiPart.isParsing() && multiPart.getParsedCount() == count) {
+				current = step(current);
+			}
+			success = true;
+		}
+		finally {
+			advancing = false;
+			pause(success);
+		}
+	}
+
+	/**
+	 * Releases the data once we are done or in between steps if it can be reopened
+	 */
+	private void pause(boolean success) throws IOException {
+		if (!success || frames.isEmpty()) {
+			// nothing can be parsed anymore
+			for (Frame frame : frames) {
+				frame.multiPart.setLazyParser(null);
+			}
+			frames.clear();
+			input.close();
+		}
+		else if (!input.isEOF() && isReopenable()) {
+			input.suspend();
+		}
+	}
+
+	/**
+	 * Whether the data can be reopened at any position
+	 */
+	private boolean isReopenable() {
+		return mapping != null || MimeUtils.isPositional(resource);
+	}
+
+	private ReadableContainer<ByteBuffer> reopen(long position) throws IOException {
+		return mapping != null ? mapping.getReadable(position, mapping.getSize() - position) : MimeUtils.getReadable(resource, position);
+	}
+
+	/**
+	 * Takes one step, either a new child is started for the innermost multipart or the child that was returned by the previous step is added to it
+	 */
+	private ParsedMimePart step(ParsedMimePart part) throws ParseException, IOException {
+		Frame frame = frames.get(frames.size() - 1);
+		// the multipart needs a (new) child
+		if (part == null) {
+			push(frame.boundary);
+			// child parts are delimited by the boundary, so they never require a content length
+			part = start(frame.multiPart, frame.childPartNumber++, frame.offset, null, false, false);
+			if (part != SKIPPED) {
+				return part;
+			}
+		}
+		// a child has finished (or was skipped)
+		pop();
+		if (handler == null && part != SKIPPED) {
+			frame.multiPart.addParts(part);
+		}
+		if (isLastBoundary()) {
+			frames.remove(frames.size() - 1);
+			return finish(frame);
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a part, if it is a multipart with children, a frame is added to the stack and null is returned
+	 * Otherwise the fully parsed part is returned
+	 */
+	private ParsedMimePart start(ParsedMimeMultiPart parent, int partNumber, long parentOffset, ReadableResource resource, boolean isRoot, boolean requireKnownContentLength, Header...originalHeaders) throws ParseException, IOException {
+		long initialOffset = getPosition();
+		Header [] headers = originalHeaders == null || originalHeaders.length == 0 ? readHeaders() : originalHeaders;
+		// we only need to find the end of a part that is filtered out, nothing else is done with it
+		if (parent != null && parser.getFilter() != null && !parser.getFilter().accept(getPath(parent, partNumber, headers), headers)) {
+			Long contentLength = MimeUtils.getContentLength(headers);
+			if (contentLength == null || !jump(getPosition() + contentLength)) {
+				skip();
+			}
+			return SKIPPED;
+		}
+		String contentType = MimeUtils.getContentType(headers).toLowerCase();
+
+		ParsedMimePart part = parser.newHandler(contentType);
+		part.setParser(parser);
+		part.setResource(resource);
+		part.setHeader(headers);
+		// unlike the char-based parser we know the relative offset up front, so it is already correct if the part wants to read itself when parsing
+		part.setOffset(initialOffset - parentOffset);
+		part.setBodyOffset(getPosition() - initialOffset);
+		part.setParent(parent, partNumber);
+		if (handler != null) {
+			handler.onPartStart(headers, frames.size());
+		}
+
+		Header expectHeader = MimeUtils.getHeader("Expect", headers);
+		if (expectHeader != null && expectHeader.getValue().trim().equalsIgnoreCase("100-Continue")) {
+			if (!isRoot)
+				throw new ParseException("An 'Expect' header was found in a non-root part", 0);
+			else if (!parser.getExpectContinueHandler().shouldContinue(headers)) {
+				if (handler != null) {
+					handler.onPartEnd(part.getSize());
+				}
+				return part;
+			}
+		}
+
+		String boundary = MimeUtils.getBoundary(headers);
+		if (part instanceof ParsedMimeMultiPart && boundary != null) {
+			Frame frame = new Frame();
+			frame.multiPart = (ParsedMimeMultiPart) part;
+			frame.offset = initialOffset;
+			frame.boundary = boundary.getBytes(CHARSET);
+
+			long possibleOffset = getPosition();
+			ParsedMimePart contentPart;
+			// same localized patch as in the char-based parser: only the initial content part is dechunked
+			String transferEncoding = MimeUtils.getTransferEncoding(part.getHeaders());
+			if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+				contentPart = parseChunkedContentPart(boundary);
+			}
+			else {
+				contentPart = parseContentPart(boundary, frame.boundary);
+			}
+			// the preamble is not reported as a part to the handler
+			if (contentPart.getSize() > 0 && handler == null) {
+				contentPart.setOffset(possibleOffset - initialOffset);
+				contentPart.setParent(frame.multiPart, frame.childPartNumber++);
+				frame.multiPart.addParts(contentPart);
+			}
+			if (isLastBoundary()) {
+				return finish(frame);
+			}
+			frames.add(frame);
+			if (lazy) {
+				frame.multiPart.setLazyParser(this);
+			}
+			return null;
+		}
+		else {
+			Long contentLength = MimeUtils.getContentLength(headers);
+			String transferEncoding = MimeUtils.getTransferEncoding(headers);
+			int amountToIgnore = 0;
+			// a child that knows its own length can jump straight to the boundary, we only scan for it if it is not there
+			// the content is not needed to calculate the size but the handler (if any) and the trailers of a chunked part do need it
+			if (parent == null || handler != null || contentLength == null || (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) || !jump(getPosition() + contentLength)) {
+				amountToIgnore = parseContentPart(part, new LevelContainer(), null, requireKnownContentLength, getBody(part));
+				// whatever is left between the content and the boundary (usually a line ending) does not belong to the part
+				if (parent != null && contentLength != null) {
+					skip();
+				}
+			}
+			// see the char-based parser why we prefer the content length
+			if (contentLength != null) {
+				part.setSize(part.getBodyOffset() + contentLength);
+			}
+			else {
+				part.setSize(getPosition() - initialOffset - amountToIgnore);
+			}
+			if (handler != null) {
+				handler.onPartEnd(part.getSize());
+			}
+			// there is no data to reread when pushing events
+			else if (part instanceof ParseablePart)
+				((ParseablePart) part).parse();
+			return part;
+		}
+	}
+
+	/**
+	 * The last boundary of the multipart has been read
+	 */
+	private ParsedMimePart finish(Frame frame) throws ParseException, IOException {
+		frame.multiPart.setSize(getPosition() - frame.offset);
+		frame.multiPart.setLazyParser(null);
+		if (parser.isCleanupWhitespaceBetweenBoundaries()) {
+			skipWhitespace();
+		}
+		if (handler != null) {
+			handler.onPartEnd(frame.multiPart.getSize());
+		}
+		else if (frame.multiPart instanceof ParseablePart)
+			((ParseablePart) frame.multiPart).parse();
+		return frame.multiPart;
+	}
+
+	/**
+	 * The names of the part and its ancestors, the root is not included
+	 */
+	private String getPath(ParsedMimeMultiPart parent, int partNumber, Header...headers) {
+		String name = MimeUtils.getName(headers);
+		StringBuilder builder = new StringBuilder();
+		for (ParsedMimePart ancestor = parent; ancestor.getParent() != null; ancestor = ancestor.getParent()) {
+			builder.insert(0, ancestor.getName() + "/");
+		}
+		return builder.append(name == null ? "part" + partNumber : name).toString();
+	}
+
+	/**
+	 * Checks whether there is a delimiter (optionally preceeded by a line ending) at the given absolute position without scanning the data before it
+	 * If there is, everything up to and including the delimiter is consumed and the level is ended as if we had scanned for it
+	 * The delimiter is checked in the buffer or, if the data can be reopened, by reading it at that position, otherwise false is returned
+	 */
+	private boolean jump(long position) throws IOException {
+		int depth = matcher.getDepth();
+		if (ends[depth] >= 0) {
+			return false;
+		}
+		int length = 0;
+		for (int i = 1; i <= depth; i++) {
+			length = Math.max(length, matcher.getDelimiterLength(i));
+		}
+		// room for a "\r\n" before the delimiter
+		length += 2;
+		byte [] data = peek(position, length);
+		if (data == null) {
+			return false;
+		}
+		int stop = matcher.scan(data, 0, data.length, true);
+		int level = matcher.getMatchLevel();
+		if (level == 0 || stop > 2 || (stop > 0 && data[stop - 1] != '\n') || (stop > 1 && data[0] != '\r')) {
+			return false;
+		}
+		long delimiter = position + stop;
+		long target = delimiter + matcher.getDelimiterLength(level);
+		if (target <= input.getFetchTotal()) {
+			input.skip((int) (target - input.getReadTotal()));
+		}
+		else {
+			input.seek(target, reopen(target));
+		}
+		for (int i = level; i <= depth; i++) {
+			ends[i] = delimiter;
+		}
+		safeEnd = -1;
+		return true;
+	}
+
+	/**
+	 * Returns (at most) the given amount of bytes at the absolute position, this is null if they are not buffered and the data can not be reopened
+	 */
+	private byte [] peek(long position, int length) throws IOException {
+		long readTotal = input.getReadTotal();
+		if (position < readTotal) {
+			return null;
+		}
+		else if (position + length <= input.getFetchTotal()) {
+			int start = input.getPosition() + (int) (position - readTotal);
+			return Arrays.copyOfRange(input.getBuffer(), start, start + length);
+		}
+		else if (!isReopenable()) {
+			return null;
+		}
+		ReadableContainer<ByteBuffer> readable = reopen(position);
+		if (readable == null) {
+			return null;
+		}
+		try {
+			byte [] data = new byte[length];
+			int total = 0;
+			while (total < length) {
+				long read = readable.read(IOUtils.wrap(data, total, length - total, false));
+				if (read <= 0) {
+					break;
+				}
+				total += read;
+			}
+			return total == length ? data : Arrays.copyOf(data, total);
+		}
+		finally {
+			readable.close();
+		}
+	}
+
+	/**
+	 * Skips the rest of the current level without looking at it
+	 */
+	private void skip() throws IOException {
+		int available;
+		while ((available = getAvailable()) > 0) {
+			input.skip(available);
+		}
+	}
+
+	/**
+	 * The content before the first boundary, it is delimited by a temporary level
+	 * Note that this content is counted at the level of the multipart so the delimiter (if found) is included in the count
+	 */
+	private ParsedMimePart parseContentPart(String boundary, byte [] boundaryBytes) throws ParseException, IOException {
+		ParsedMimePart part = parser.newHandler(MimeUtils.getContentType());
+		part.setParser(parser);
+		long initialOffset = getPosition();
+		int amountToIgnore;
+		push(boundaryBytes);
+		try {
+			amountToIgnore = parseContentPart(part, new LevelContainer(), boundary, false, null);
+		}
+		finally {
+			pop();
+		}
+		part.setSize(getPosition() - initialOffset - amountToIgnore);
+		return part;
+	}
+
+	/**
+	 * If the multipart itself is chunked we can not scan the raw bytes for the boundary, we have to scan the dechunked data instead
+	 */
+	private ParsedMimePart parseChunkedContentPart(String boundary) throws ParseException, IOException {
+		ParsedMimePart part = parser.newHandler(MimeUtils.getContentType());
+		part.setParser(parser);
+		CountingReadableContainer<ByteBuffer> countingData = IOUtils.countReadable(new ChunkedReadableByteContainer(new LevelContainer()));
+		int amountToIgnore = parseContentPart(part, new DelimitedByteContainer(countingData, ("--" + boundary).getBytes(CHARSET)), boundary, false, null);
+		part.setSize(countingData.getReadTotal() - amountToIgnore);
+		return part;
+	}
+
+	/**
+	 * Returns the amount of bytes to ignore at the end of the content
+	 * If a boundary is passed in, the data is expected to be delimited by it already
+	 * If a body is passed in, the content is written to it (without the trailing whitespace that is ignored), otherwise it is discarded
+	 */
+	private int parseContentPart(ParsedMimePart part, ReadableContainer<ByteBuffer> data, String boundary, boolean requireKnownContentLength, WritableContainer<ByteBuffer> body) throws ParseException, IOException {
+		String transferEncoding = MimeUtils.getTransferEncoding(part.getHeaders());
+		Long contentLength = null;
+
+		if (boundary == null) {
+			contentLength = MimeUtils.getContentLength(part.getHeaders());
+			if (contentLength != null)
+				data = IOUtils.blockUntilRead(IOUtils.limitReadable(data, contentLength), contentLength);
+			else if (requireKnownContentLength) {
+				if (transferEncoding == null || !transferEncoding.equalsIgnoreCase("chunked")) {
+					boolean allowAnyway = false;
+					if (parser.isAllowNoMessageSizeForClosedConnections()) {
+						Header connection = MimeUtils.getHeader("Connection", part.getHeaders());
+						if (connection != null && connection.getValue() != null && connection.getValue().equalsIgnoreCase("close")) {
+							allowAnyway = true;
+						}
+					}
+					if (!allowAnyway) {
+						return 0;
+					}
+				}
+			}
+		}
+
+		HeaderProvider headerProvider = null;
+		if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+			headerProvider = new ChunkedReadableByteContainer(data);
+			data = headerProvider;
+		}
+		// we keep track of the whitespace at the end, it is not part of the content (unless there is a content length)
+		TrailingWhitespaceContainer trimmer = parser.acquireTrimmer(body);
+		trimmer.writeBytes(data);
+		int trailingWhitespace = trimmer.getTrailingWhitespace();
+		if (body != null) {
+			if (contentLength != null) {
+				trimmer.release();
+			}
+			// flushes the decoder (if any)
+			trimmer.close();
+		}
+		parser.releaseTrimmer(trimmer);
+		if (headerProvider != null) {
+			if (handler != null && headerProvider.getAdditionalHeaders().length > 0) {
+				handler.onTrailers(headerProvider.getAdditionalHeaders());
+			}
+			part.setHeader(headerProvider.getAdditionalHeaders());
+		}
+		// the boundary is preceeded by two "--" so ignore an additional 2
+		return trailingWhitespace + (boundary == null ? 0 : boundary.length() + 2);
+	}
+
+	/**
+	 * The headers are scanned straight from the buffered bytes, we only consume up to the end of the headers
+	 */
+	private Header [] readHeaders() throws ParseException, IOException {
+		HeaderScanner scanner = new HeaderScanner();
+		while (!scanner.isFinished()) {
+			int available = getAvailable();
+			if (available <= 0) {
+				break;
+			}
+			input.skip(scanner.scan(input.getBuffer(), input.getPosition(), available));
+		}
+		return scanner.getHeaders();
+	}
+
+	/**
+	 * This assumes the boundary itself was just consumed, the cursor is situated right behind it
+	 */
+	private boolean isLastBoundary() throws ParseException, IOException {
+		int trailingCounter = 0;
+		int current;
+		while ((current = read()) >= 0) {
+			if (current == '-') {
+				trailingCounter++;
+				if (trailingCounter > 2)
+					throw new ParseException("The boundary can be followed by max two '-'", 0);
+			}
+			else if (current == '\r')
+				continue;
+			else if (current == '\n')
+				break;
+			else
+				throw new ParseException("The boundary should not be followed by " + (char) current, 0);
+		}
+		return trailingCounter > 0 || current < 0;
+	}
+
+	private void skipWhitespace() throws IOException {
+		char [] allowed = parser.getAllowedCharactersBetweenBoundaries();
+		int current;
+		outer: while ((current = read()) >= 0) {
+			for (char character : allowed) {
+				if (character == current) {
+					continue outer;
+				}
+			}
+			throw new IOException("Found the non-whitespace character '" + (char) current + "' between boundaries");
+		}
+	}
+
+	/**
+	 * Adds a level that is delimited by the given boundary
+	 */
+	private void push(byte [] boundary) {
+		int level = matcher.push(boundary);
+		if (level == ends.length) {
+			ends = Arrays.copyOf(ends, level * 2);
+		}
+		// if the parent level is already done, so is this one
+		ends[level] = ends[level - 1];
+		safeEnd = -1;
+	}
+
+	private void pop() {
+		matcher.pop();
+		safeEnd = -1;
+	}
+
+	/**
+	 * The absolute position of the current level, this is the position where it ended (if it did) or the current position
+	 */
+	private long getPosition() {
+		int level = matcher.getDepth();
+		return ends[level] >= 0 ? ends[level] : input.getReadTotal();
+	}
+
+	/**
+	 * Returns the amount of bytes that can be consumed at the current level without running into a delimiter
+	 * If a delimiter of this level or one of its ancestors is found at the current position, it is consumed, the level is ended and -1 is returned
+	 * If the data ends, -1 is returned as well, 0 is returned if there is no data available at this point
+	 */
+	private int getAvailable() throws IOException {
+		int depth = matcher.getDepth();
+		while (true) {
+			if (ends[depth] >= 0) {
+				return -1;
+			}
+			long readTotal = input.getReadTotal();
+			if (safeEnd > readTotal) {
+				return (int) (safeEnd - readTotal);
+			}
+			int position = input.getPosition();
+			int stop = matcher.scan(input.getBuffer(), position, input.getLimit(), input.isEOF());
+			if (stop == position && matcher.getMatchLevel() > 0) {
+				int level = matcher.getMatchLevel();
+				input.skip(matcher.getDelimiterLength(level));
+				for (int i = level; i <= depth; i++) {
+					ends[i] = readTotal;
+				}
+				safeEnd = -1;
+				return -1;
+			}
+			else if (stop > position) {
+				safeEnd = readTotal + (stop - position);
+				return stop - position;
+			}
+			// either there is no data or we need more data to decide whether there is a delimiter
+			int read = input.fill();
+			if (read == 0) {
+				return 0;
+			}
+			else if (read < 0 && input.available() == 0) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Where the body of the part has to go, this is null if there is no handler
+	 */
+	private WritableContainer<ByteBuffer> getBody(ParsedMimePart part) {
+		if (handler == null) {
+			return null;
+		}
+		WritableContainer<ByteBuffer> body = new HandlerContainer(handler);
+		Transcoder<ByteBuffer> decoder = decode ? MimeUtils.getDecoder(MimeUtils.getContentTransferEncoding(part.getHeaders())) : null;
+		return decoder == null ? body : TranscoderUtils.wrapWritable(body, decoder);
+	}
+
+	private int read() throws IOException {
+		return getAvailable() > 0 ? input.read() : -1;
+	}
+
+	private long read(ByteBuffer target) throws IOException {
+		long totalRead = 0;
+		while (target.remainingSpace() > 0) {
+			int available = getAvailable();
+			if (available < 0) {
+				return totalRead == 0 ? -1 : totalRead;
+			}
+			else if (available == 0) {
+				break;
+			}
+			int written = target.write(input.getBuffer(), input.getPosition(), (int) Math.min(available, target.remainingSpace()));
+			if (written <= 0) {
+				break;
+			}
+			input.skip(written);
+			totalRead += written;
+		}
+		return totalRead;
+	}
+
+	/**
+	 * A multipart that is still parsing its children
+	 */
+	private static class Frame {
+		private ParsedMimeMultiPart multiPart;
+		private long offset;
+		private byte [] boundary;
+		private int childPartNumber;
+	}
+
+	/**
+	 * Pushes everything that is written to the handler
+	 */
+	static class HandlerContainer implements WritableContainer<ByteBuffer> {
+		
+		private MimeEventHandler handler;
+		
+		HandlerContainer(MimeEventHandler handler) {
+			this.handler = handler;
+		}
+		
+		@Override
+		public long write(ByteBuffer source) throws IOException {
+			long amount = source.remainingData();
+			if (amount > 0) {
+				handler.onBodyBytes(source);
+				// whatever the handler did not read is dropped
+				source.truncate();
+			}
+			return amount;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// nothing is buffered
+		}
+
+		@Override
+		public void close() throws IOException {
+			// the handler decides when it is done
+		}
+	}
+
+	/**
+	 * A view on the current level, this is what would have been a delimited container in the char-based parser
+	 */
+	private class LevelContainer implements ReadableContainer<ByteBuffer> {
+		@Override
+		public long read(ByteBuffer target) throws IOException {
+			return MimeByteParser.this.read(target);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// the data is shared by all levels, it is closed by the parser
+		}
+	}
+}
@@ -0,0 +1,688 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.util.BoundaryMatcher;
+
+/**
+ * A parser that never blocks: you feed it whatever data you have and it tells you what it found
+ * Every call to feed() returns at most one event, keep calling it until it returns NEED_MORE, at that point all the data you passed in has been consumed
+ * The data of the events (headers, body chunks,...) is only valid until the next call to feed()
+ *
+ * The rules are the same as those of the other parsers:
+ * - the body of a part that is not delimited by a content length does not include the trailing whitespace
+ * - the content before the first boundary and after the last boundary of a multipart is skipped
+ * - a chunked root part is dechunked before it is parsed, the trailers are reported before the root ends
+ * Unlike the other parsers, "Expect: 100-Continue" is not handled, you get the headers first so you can decide for yourself
+ *
+ * Once the message is done, the parser does not take any more data: whatever it already had beyond the end is available as the remainder
+ * If the data continues with another message (e.g. a persistent http connection), call reset() and keep feeding
+ */
+public class MimeFeedParser {
+
+	public enum Event {
+		/**
+		 * All the data has been processed, feed more data (or call end() if there is none)
+		 */
+		NEED_MORE,
+		/**
+		 * A new part starts, check getHeaders() and getDepth()
+		 */
+		PART_HEADERS,
+		/**
+		 * A block of the body of the current part, check getChunk()
+		 */
+		BODY_CHUNK,
+		/**
+		 * The trailers of a chunked message, check getTrailers()
+		 */
+		TRAILERS,
+		/**
+		 * The current part ends, check getSize()
+		 */
+		PART_END,
+		/**
+		 * The message is done
+		 */
+		DONE
+	}
+
+	private enum State {
+		HEADERS, BODY, SKIP, CLOSE, DELIMITER, EPILOGUE, TRAILERS, END, DONE
+	}
+
+	private enum ChunkState {
+		SIZE, EXTENSION, DATA, DATA_END, TRAILER
+	}
+
+	private MimeParser parser;
+
+	/**
+	 * The (dechunked) data, the position is the first byte that has not been processed yet
+	 */
+	private byte [] buffer;
+	private int position, limit;
+
+	/**
+	 * The absolute offset of the first byte in the buffer
+	 */
+	private long offset;
+
+	/**
+	 * The absolute end of the message if it has a content length, -1 otherwise
+	 */
+	private long end = -1;
+
+	/**
+	 * The other parsers ignore the content length of a multipart root, so do we, but once it is closed the remainder up to the content length is drained
+	 */
+	private long declaredEnd = -1;
+
+	/**
+	 * No more data will be fed
+	 */
+	private boolean ended;
+
+	/**
+	 * If the message is chunked, the raw data goes here first
+	 */
+	private byte [] raw;
+	private int rawPosition, rawLimit;
+	/**
+	 * The absolute offset of the first byte in the raw buffer
+	 */
+	private long rawOffset;
+	private ChunkState chunkState = ChunkState.SIZE;
+	private long chunkRemaining;
+	private boolean chunked, chunksDone;
+	private HeaderScanner trailerScanner;
+	private Header [] trailers;
+
+	private State state = State.HEADERS;
+	private HeaderScanner scanner = new HeaderScanner();
+	private BoundaryMatcher matcher = new BoundaryMatcher();
+
+	/**
+	 * The absolute start of the multiparts that are still open, the last one is the innermost
+	 */
+	private List<Long> frames = new ArrayList<Long>();
+
+	/**
+	 * The current leaf part: where it started, where its emitted body ended, how much of its content length remains (-1 if unknown) and whether we trim the trailing whitespace
+	 */
+	private long partStart, bodyEnd, remaining;
+	private boolean trim;
+
+	/**
+	 * The root part is a multipart
+	 */
+	private boolean rootMultiPart;
+
+	/**
+	 * The level of the delimiter that was found, the multiparts below it are closed
+	 */
+	private int delimiterLevel;
+	private int dashes;
+
+	/**
+	 * The data for the events
+	 */
+	private Header [] headers;
+	private int depth;
+	private int chunkOffset, chunkLength;
+	private long size;
+
+	public MimeFeedParser() {
+		this(new MimeParser());
+	}
+
+	/**
+	 * The settings of the mime parser (trim size, content length requirements, type handlers) are used
+	 */
+	public MimeFeedParser(MimeParser parser) {
+		this(parser, 1024 * 16);
+	}
+
+	public MimeFeedParser(MimeParser parser, int bufferSize) {
+		this.parser = parser;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Takes as much data as it can and returns the next event
+	 */
+	public Event feed(ByteBuffer data) throws ParseException, IOException {
+		while (true) {
+			take(data);
+			Event event = next();
+			// processing always frees up room (or grows the buffer) so we can take more of the data
+			if (event != Event.NEED_MORE || data == null || data.remainingData() == 0) {
+				return event;
+			}
+		}
+	}
+
+	/**
+	 * Indicates that no more data will be fed, returns the next event
+	 */
+	public Event end() throws ParseException, IOException {
+		ended = true;
+		return feed(null);
+	}
+
+	/**
+	 * Copies as much data as possible to the internal buffer, returns false if nothing was taken
+	 */
+	private boolean take(ByteBuffer data) throws IOException {
+		// once we are done, the data belongs to whatever comes next
+		if (data == null || data.remainingData() == 0 || state == State.DONE) {
+			return false;
+		}
+		if (ended) {
+			throw new IllegalStateException("The end of the data has already been indicated");
+		}
+		if (chunked) {
+			if (rawPosition > 0) {
+				System.arraycopy(raw, rawPosition, raw, 0, rawLimit - rawPosition);
+				rawOffset += rawPosition;
+				rawLimit -= rawPosition;
+				rawPosition = 0;
+			}
+			if (rawLimit == raw.length) {
+				raw = Arrays.copyOf(raw, raw.length * 2);
+			}
+			int read = data.read(raw, rawLimit, raw.length - rawLimit);
+			rawLimit += read;
+			return read > 0;
+		}
+		else {
+			compact();
+			int read = data.read(buffer, limit, buffer.length - limit);
+			limit += read;
+			return read > 0;
+		}
+	}
+
+	/**
+	 * Frees up the processed data, the buffer only grows if it is full of data we can not process yet
+	 */
+	private void compact() {
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			offset += position;
+			limit -= position;
+			position = 0;
+		}
+		else if (limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+	}
+
+	private Event next() throws ParseException, IOException {
+		if (chunked) {
+			compact();
+			dechunk();
+		}
+		while (true) {
+			int viewLimit = getViewLimit();
+			boolean eof = isEOF();
+			switch (state) {
+				case HEADERS:
+					position += scanner.scan(buffer, position, viewLimit - position);
+					if (!scanner.isFinished() && !eof) {
+						return Event.NEED_MORE;
+					}
+					startPart();
+					return Event.PART_HEADERS;
+				case BODY:
+					if (remaining == 0) {
+						return endPart(-1);
+					}
+					int stop = matcher.scan(buffer, position, viewLimit, eof);
+					int level = matcher.getMatchLevel();
+					if (remaining > 0 && stop - position > remaining) {
+						stop = (int) (position + remaining);
+						level = 0;
+					}
+					int emitEnd = stop, drop = 0;
+					if (trim) {
+						int whitespace = getTrailingWhitespace(position, stop);
+						emitEnd = stop - whitespace;
+						// we only know that the whitespace is trailing if the content ends here
+						if (level > 0 || (eof && stop == viewLimit)) {
+							drop = whitespace;
+						}
+					}
+					if (emitEnd > position) {
+						chunkOffset = position;
+						chunkLength = emitEnd - position;
+						position = emitEnd + drop;
+						bodyEnd = offset + emitEnd;
+						if (remaining > 0) {
+							remaining -= chunkLength;
+						}
+						return Event.BODY_CHUNK;
+					}
+					position += drop;
+					if (level > 0 && stop == position) {
+						return endPart(level);
+					}
+					else if (eof && position == viewLimit) {
+						return endPart(0);
+					}
+					return Event.NEED_MORE;
+				case SKIP:
+					stop = matcher.scan(buffer, position, viewLimit, eof);
+					position = stop;
+					if (matcher.getMatchLevel() > 0) {
+						consumeDelimiter(matcher.getMatchLevel());
+					}
+					else if (eof && position == viewLimit) {
+						// the data ended before all the multiparts were closed
+						delimiterLevel = 0;
+						state = State.CLOSE;
+					}
+					else {
+						return Event.NEED_MORE;
+					}
+					break;
+				case CLOSE:
+					// a delimiter of an outer multipart also closes the multiparts within it
+					if (frames.size() > delimiterLevel) {
+						size = offset + position - frames.remove(frames.size() - 1);
+						matcher.pop();
+						if (frames.isEmpty()) {
+							// the root waits for the trailers (if any)
+							state = State.EPILOGUE;
+							break;
+						}
+						return Event.PART_END;
+					}
+					state = State.DELIMITER;
+					dashes = 0;
+					break;
+				case DELIMITER:
+					if (!readDelimiterLine(viewLimit, eof)) {
+						return Event.NEED_MORE;
+					}
+					if (dashes > 0 || eof && position == viewLimit) {
+						size = offset + position - frames.remove(frames.size() - 1);
+						matcher.pop();
+						if (frames.isEmpty()) {
+							// the root waits for the trailers (if any)
+							state = State.EPILOGUE;
+							break;
+						}
+						state = State.SKIP;
+						return Event.PART_END;
+					}
+					partStart = offset + position;
+					scanner = new HeaderScanner();
+					state = State.HEADERS;
+					break;
+				case EPILOGUE:
+					// with a known end we drain everything that belongs to the message, otherwise we stop here
+					if (end < 0 && declaredEnd > offset + position) {
+						end = declaredEnd;
+					}
+					if (chunked || end >= 0) {
+						position = viewLimit;
+						if (!eof) {
+							return Event.NEED_MORE;
+						}
+					}
+					state = State.TRAILERS;
+					break;
+				case TRAILERS:
+					state = State.END;
+					if (trailers != null && trailers.length > 0) {
+						return Event.TRAILERS;
+					}
+					break;
+				case END:
+					state = State.DONE;
+					// a multipart root has already calculated its size
+					if (!rootMultiPart) {
+						size = bodyEnd - partStart;
+					}
+					return Event.PART_END;
+				case DONE:
+					return Event.DONE;
+			}
+		}
+	}
+
+	/**
+	 * The headers of a part are done, determine how its body is delimited
+	 */
+	private void startPart() throws ParseException, IOException {
+		headers = scanner.getHeaders();
+		depth = frames.size();
+		boolean isRoot = depth == 0;
+		if (isRoot) {
+			String transferEncoding = MimeUtils.getTransferEncoding(headers);
+			if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+				startChunked();
+			}
+		}
+		Long contentLength = MimeUtils.getContentLength(headers);
+		if (isRoot && contentLength != null && !chunked) {
+			declaredEnd = offset + position + contentLength;
+		}
+		String boundary = MimeUtils.getBoundary(headers);
+		if (boundary != null && parser.newHandler(MimeUtils.getContentType(headers).toLowerCase()) instanceof ParsedMimeMultiPart) {
+			rootMultiPart |= isRoot;
+			matcher.push(boundary.getBytes(MimeByteParser.CHARSET));
+			frames.add(partStart);
+			// the content before the first boundary is skipped
+			state = State.SKIP;
+		}
+		else {
+			if (isRoot) {
+				end = declaredEnd;
+			}
+			remaining = contentLength == null ? -1 : contentLength;
+			trim = contentLength == null;
+			bodyEnd = offset + position;
+			state = State.BODY;
+			// same rules as the other parsers: a root without a known size has no content unless it is chunked or the connection is closed afterwards
+			if (isRoot && contentLength == null && !chunked && parser.isRequireKnownContentLength()) {
+				Header connection = MimeUtils.getHeader("Connection", headers);
+				if (!parser.isAllowNoMessageSizeForClosedConnections() || connection == null || connection.getValue() == null || !connection.getValue().equalsIgnoreCase("close")) {
+					remaining = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The body of a leaf part is done, the level is that of the delimiter that ended it, 0 if the data ended and -1 if the content length was reached
+	 */
+	private Event endPart(int level) throws ParseException, IOException {
+		if (frames.isEmpty()) {
+			state = State.EPILOGUE;
+			// the root part is reported once we are sure there are no trailers left
+			return next();
+		}
+		size = bodyEnd - partStart;
+		if (level > 0) {
+			consumeDelimiter(level);
+		}
+		else if (level == 0) {
+			delimiterLevel = 0;
+			state = State.CLOSE;
+		}
+		else {
+			// the rest of the part (if any) is skipped
+			state = State.SKIP;
+		}
+		return Event.PART_END;
+	}
+
+	private void consumeDelimiter(int level) {
+		position += matcher.getDelimiterLength(level);
+		delimiterLevel = level;
+		state = State.CLOSE;
+	}
+
+	/**
+	 * Reads the remainder of the line after a delimiter, it is either the closing delimiter (with "--") or a regular one
+	 */
+	private boolean readDelimiterLine(int viewLimit, boolean eof) throws ParseException {
+		while (position < viewLimit) {
+			// once the root is closed at its content length we don't wait for the rest of the line, the next message might follow right away
+			if (dashes == 2 && frames.size() == 1 && declaredEnd >= 0 && offset + position >= declaredEnd) {
+				return true;
+			}
+			byte current = buffer[position++];
+			if (current == '-') {
+				if (++dashes > 2) {
+					throw new ParseException("The boundary can be followed by max two '-'", 0);
+				}
+			}
+			else if (current == '\n') {
+				return true;
+			}
+			else if (current != '\r') {
+				throw new ParseException("The boundary should not be followed by " + (char) current, 0);
+			}
+		}
+		return eof || (dashes == 2 && frames.size() == 1 && declaredEnd >= 0 && offset + position >= declaredEnd);
+	}
+
+	/**
+	 * The amount of whitespace at the end of the range, we only look at the same amount of trailing bytes as the other parsers
+	 */
+	private int getTrailingWhitespace(int from, int to) {
+		int max = 4 + parser.getTrimSize();
+		int amount = 0;
+		for (int i = to - 1; i >= from && amount < max; i--) {
+			byte current = buffer[i];
+			if (current == ' ' || current == '\t' || current == '\n' || current == '\r' || current == '\f' || current == 0x0B) {
+				amount++;
+			}
+			else {
+				break;
+			}
+		}
+		return amount;
+	}
+
+	private int getViewLimit() {
+		return end >= 0 ? (int) Math.min(limit, end - offset) : limit;
+	}
+
+	/**
+	 * Whether there is no more data for the message beyond the view limit
+	 */
+	private boolean isEOF() {
+		if (end >= 0 && offset + limit >= end) {
+			return true;
+		}
+		return chunked ? chunksDone : ended;
+	}
+
+	/**
+	 * Everything after the headers of the root is moved to the raw buffer to be dechunked
+	 */
+	private void startChunked() {
+		chunked = true;
+		// the raw buffer is reused for later messages
+		if (raw == null || raw.length < buffer.length) {
+			raw = new byte[buffer.length];
+		}
+		rawOffset = offset + position;
+		rawPosition = 0;
+		rawLimit = limit - position;
+		System.arraycopy(buffer, position, raw, 0, rawLimit);
+		limit = position;
+	}
+
+	private void dechunk() throws ParseException, IOException {
+		while (rawPosition < rawLimit && !chunksDone && limit < buffer.length) {
+			switch (chunkState) {
+				case SIZE:
+					byte current = raw[rawPosition++];
+					int digit = Character.digit(current, 16);
+					if (digit >= 0) {
+						chunkRemaining = chunkRemaining * 16 + digit;
+					}
+					else if (current == ';') {
+						chunkState = ChunkState.EXTENSION;
+					}
+					else if (current == '\n') {
+						endChunkSize();
+					}
+					else if (current != '\r' && current != ' ' && current != '\t') {
+						throw new ParseException("Invalid character in chunk size: " + (char) current, 0);
+					}
+					break;
+				case EXTENSION:
+					if (raw[rawPosition++] == '\n') {
+						endChunkSize();
+					}
+					break;
+				case DATA:
+					int amount = (int) Math.min(chunkRemaining, Math.min(rawLimit - rawPosition, buffer.length - limit));
+					System.arraycopy(raw, rawPosition, buffer, limit, amount);
+					rawPosition += amount;
+					limit += amount;
+					chunkRemaining -= amount;
+					if (chunkRemaining == 0) {
+						chunkState = ChunkState.DATA_END;
+					}
+					break;
+				case DATA_END:
+					current = raw[rawPosition++];
+					if (current == '\n') {
+						chunkState = ChunkState.SIZE;
+					}
+					else if (current != '\r') {
+						throw new ParseException("The chunk should end with a linefeed, not " + (char) current, 0);
+					}
+					break;
+				case TRAILER:
+					rawPosition += trailerScanner.scan(raw, rawPosition, rawLimit - rawPosition);
+					if (trailerScanner.isFinished()) {
+						trailers = trailerScanner.getHeaders();
+						chunksDone = true;
+					}
+					break;
+			}
+		}
+		if (ended && !chunksDone && rawPosition == rawLimit) {
+			// the data ended before the chunks (or the trailers) were properly closed, we take what we have
+			if (trailerScanner != null) {
+				trailers = trailerScanner.getHeaders();
+			}
+			chunksDone = true;
+		}
+	}
+
+	private void endChunkSize() throws ParseException, IOException {
+		if (chunkRemaining == 0) {
+			chunkState = ChunkState.TRAILER;
+			trailerScanner = new HeaderScanner();
+			// the linefeed of the size line counts towards the empty line that ends the trailers
+			trailerScanner.scan(new byte[] { '\n' }, 0, 1);
+		}
+		else {
+			chunkState = ChunkState.DATA;
+		}
+	}
+
+	/**
+	 * Prepares the parser for the next message, the remainder of the previous message is kept and parsed first
+	 * The buffers are reused and the offsets keep counting so getEnd() remains the absolute position in the data that was fed
+	 */
+	public void reset() {
+		if (state != State.DONE) {
+			throw new IllegalStateException("The current message is not done yet");
+		}
+		if (chunked) {
+			int length = rawLimit - rawPosition;
+			if (length > buffer.length) {
+				buffer = new byte[length];
+			}
+			System.arraycopy(raw, rawPosition, buffer, 0, length);
+			offset = rawOffset + rawPosition;
+			limit = length;
+			rawPosition = rawLimit = 0;
+		}
+		else {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			offset += position;
+			limit -= position;
+		}
+		position = 0;
+		end = declaredEnd = -1;
+		chunked = chunksDone = false;
+		chunkState = ChunkState.SIZE;
+		chunkRemaining = 0;
+		trailerScanner = null;
+		trailers = null;
+		state = State.HEADERS;
+		scanner = new HeaderScanner();
+		// all the multiparts are closed once we are done so the matcher is empty
+		frames.clear();
+		partStart = bodyEnd = offset;
+		remaining = 0;
+		rootMultiPart = false;
+		headers = null;
+		depth = 0;
+		chunkOffset = chunkLength = 0;
+		size = 0;
+	}
+
+	/**
+	 * The absolute position in the fed data right behind the current message, this is only final once the parser is done
+	 * For a chunked message this is the position in the raw data, not in the dechunked data
+	 */
+	public long getEnd() {
+		return chunked ? rawOffset + rawPosition : offset + position;
+	}
+
+	/**
+	 * The data that was taken but does not belong to the current message (once it is done), this is only valid until the next call to feed() or reset()
+	 * Note that the parser stops taking data once it is done, anything you fed afterwards is still in your own buffer
+	 */
+	public ByteBuffer getRemainder() {
+		return chunked ? IOUtils.wrap(raw, rawPosition, rawLimit - rawPosition, true) : IOUtils.wrap(buffer, position, limit - position, true);
+	}
+
+	/**
+	 * The headers of the part that just started (or the trailers)
+	 */
+	public Header [] getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * The depth of the part that just started, 0 for the root
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * The current body chunk
+	 */
+	public ByteBuffer getChunk() {
+		return IOUtils.wrap(buffer, chunkOffset, chunkLength, true);
+	}
+
+	public Header [] getTrailers() {
+		return trailers;
+	}
+
+	/**
+	 * The size (including the headers) of the part that just ended
+	 */
+	public long getSize() {
+		return size;
+	}
+}
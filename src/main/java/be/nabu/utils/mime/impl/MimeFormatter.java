@@ -136,12 +136,12 @@ public class MimeFormatter implements PartFormatter {
 	}
 	
 	protected boolean isMultiPart(Part part) {
-		String contentType = MimeUtils.getContentType(part.getHeaders()).toLowerCase();
+		String contentType = MimeUtils.getHeaderMap(part).getContentType().toLowerCase();
 		return part instanceof MultiPart && (contentType.startsWith("multipart/") || contentType.equals(Resource.CONTENT_TYPE_DIRECTORY) || Resource.CONTENT_TYPE_DIRECTORY.equals(part.getContentType()));
 	}
 	
 	protected String getContentTransferEncoding(Part part) {
-		String contentType = MimeUtils.getContentType(part.getHeaders()).toLowerCase();
+		String contentType = MimeUtils.getHeaderMap(part).getContentType().toLowerCase();
 		if (unencodedContentTypes.contains(contentType))
 			return null;
 		else if (quotableContentTypes.contains(contentType))
@@ -160,6 +160,12 @@ public class MimeFormatter implements PartFormatter {
 	
 	private void writeHeaders(WritableContainer<ByteBuffer> output, Header...headers) throws IOException {
 		for (Header header : headers) {
+			// parsed headers that were not modified (and don't need folding or encoding) are written as they came in
+			if (header instanceof ByteHeader && ((ByteHeader) header).isVerbatim()) {
+				((ByteHeader) header).write(output);
+				output.write(wrap("\r\n".getBytes("ASCII"), true));
+				continue;
+			}
 			String formatted = MimeUtils.format(header, foldHeader, headerEncoding);
 			output.write(wrap((formatted + "\r\n").getBytes("ASCII"), true));
 		}
@@ -175,11 +181,11 @@ public class MimeFormatter implements PartFormatter {
 	}
 	
 	protected void formatContentPartHeaders(ContentPart part, WritableContainer<ByteBuffer> output) throws IOException, FormatException {
-		String contentTransferEncoding = MimeUtils.getContentTransferEncoding(part.getHeaders());
+		String contentTransferEncoding = MimeUtils.getHeaderMap(part).getContentTransferEncoding();
 		List<Header> headers = new ArrayList<Header>();
 		// make an educated guess
 		for (Header header : part.getHeaders()) {
-			if (!headersToIgnore.contains(header.getName().toLowerCase())) {
+			if (!headersToIgnore.contains(HeaderNames.toLowerCase(header.getName()))) {
 				headers.add(header);
 			}
 		}
@@ -223,9 +229,10 @@ public class MimeFormatter implements PartFormatter {
 
 	protected WritableContainer<ByteBuffer> encodeOutput(Part part, WritableContainer<ByteBuffer> output) {
 		// this assumes the formateContentPartHeaders has been called which will have checked or set the encoding (or thrown an exception)
-		String contentTransferEncoding = MimeUtils.getContentTransferEncoding(part.getHeaders());
-		String transferEncoding = MimeUtils.getTransferEncoding(part.getHeaders());
-		String contentEncoding = MimeUtils.getContentEncoding(part.getHeaders());
+		HeaderMap headers = MimeUtils.getHeaderMap(part);
+		String contentTransferEncoding = headers.getContentTransferEncoding();
+		String transferEncoding = headers.getTransferEncoding();
+		String contentEncoding = headers.getContentEncoding();
 		
 		if (!allowBinary && contentTransferEncoding == null && !(part instanceof MultiPart)) {
 			contentTransferEncoding = getContentTransferEncoding(part);
@@ -274,7 +281,7 @@ public class MimeFormatter implements PartFormatter {
 			content = IOUtils.limitReadable(content, to + 1);
 			// update the content-length if we can/should
 			if (part instanceof ModifiablePart) {
-				Long contentLength = MimeUtils.getContentLength(part.getHeaders());
+				Long contentLength = MimeUtils.getHeaderMap(part).getContentLength();
 				// again: to is inclusive!
 				if (contentLength != null && contentLength != (to - from) + 1) {
 					((ModifiablePart) part).removeHeader("Content-Length");
@@ -320,7 +327,7 @@ public class MimeFormatter implements PartFormatter {
 		
 		writeHeaders(output, new MimeHeader("MIME-Version", mimeVersion));
 		for (Header header : part.getHeaders()) {
-			if (!header.getName().equalsIgnoreCase("MIME-Version") && !headersToIgnore.contains(header.getName().toLowerCase())) {
+			if (!HeaderNames.equals(header.getName(), HeaderNames.MIME_VERSION) && !headersToIgnore.contains(HeaderNames.toLowerCase(header.getName()))) {
 				writeHeaders(output, header);
 			}
 		}
@@ -18,23 +18,19 @@
 package be.nabu.utils.mime.impl;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.bind.annotation.XmlTransient;
 
 import be.nabu.utils.codec.TranscoderUtils;
 import be.nabu.utils.codec.api.Transcoder;
-import be.nabu.utils.codec.impl.Base64Decoder;
 import be.nabu.utils.codec.impl.Base64Encoder;
-import be.nabu.utils.codec.impl.QuotedPrintableDecoder;
 import be.nabu.utils.codec.impl.QuotedPrintableEncoder;
 import be.nabu.utils.codec.impl.QuotedPrintableEncoding;
 import be.nabu.utils.io.IOUtils;
@@ -49,56 +45,88 @@ public class MimeHeader implements ModifiableHeader {
 
 	private String name, value;
 	private List<String> comments;
+	
+	/**
+	 * Keeps track of changes so derived values (e.g. in a header map) know when they are outdated
+	 */
+	private int modifications;
+	/**
+	 * Counts the modifications of all headers, values that are derived from a lot of headers (e.g. the index of the children of a multipart) can check this in one go
+	 */
+	private static final AtomicLong ALL_MODIFICATIONS = new AtomicLong();
+	/**
+	 * The structured value (e.g. the media type) of the header, it is only valid as long as the modifications have not changed
+	 */
+	private Object structured;
+	private int structuredModifications;
 	private Charset charset = Charset.defaultCharset();
 	// defaults to tab for readability but you may want to change this in some settings
 	private char foldChar = '	';
 
 	public static MimeHeader parseHeader(String headerData) throws ParseException, IOException {
-		int separatorIndex = headerData.indexOf(":");
-		if (separatorIndex < 0)
-			throw new ParseException("The header does not contain a valid separator: " + headerData, 1);
-		String name = headerData.substring(0, separatorIndex).trim();
-		String [] parts = headerData.substring(separatorIndex + 1).split(";");
-		String value = decode(parts[0].trim());
-		String [] comments = new String[parts.length - 1];
-		for (int i = 1; i < parts.length; i++)
-			comments[i - 1] = decode(parts[i].trim());
-		return new MimeHeader(name, value, comments);
+		return parseHeader(headerData.toCharArray(), 0, headerData.length());
 	}
 	
-	private static String decode(String headerData) throws ParseException, IOException {
-		// an encoded value can be split over multiple lines when folding
-		// the folded linefeeds have already been removed, but the encoded bit was also split into two, make it one again
-		headerData = headerData.replaceAll("\\?==\\?[^?]+\\?[^?]+\\?", "");
-		Pattern pattern = Pattern.compile("[\\s]*=\\?([^?]+)\\?([^?]+)\\?([^?]+)\\?=[\\s]*");
-		Matcher matcher = pattern.matcher(headerData);
-		try {
-			while (matcher.find()) {
-				String encoding = pattern.matcher(matcher.group()).replaceAll("$1");
-				String type = pattern.matcher(matcher.group()).replaceAll("$2");
-				String encoded = pattern.matcher(matcher.group()).replaceAll("$3");
-				String decoded = null;
-				if (type.equalsIgnoreCase("B")) {
-					decoded = IOUtils.toString(IOUtils.wrapReadable(
-						TranscoderUtils.transcodeBytes(IOUtils.wrap(encoded.getBytes("ASCII"), true), new Base64Decoder()),
-						Charset.forName(encoding))
-					);
-				}
-				else if (type.equalsIgnoreCase("Q")) {
-					decoded = IOUtils.toString(IOUtils.wrapReadable(
-						TranscoderUtils.transcodeBytes(IOUtils.wrap(encoded.getBytes("ASCII"), true), new QuotedPrintableDecoder(QuotedPrintableEncoding.WORD)),
-						Charset.forName(encoding))
-					);
-				}
-				else
-					throw new ParseException("The header uses encoding '" + type + "' which is currently not supported", 0);
-				headerData = headerData.replace(matcher.group(), decoded);
+	/**
+	 * Parses a header straight from a slice of chars, the name, value and comments are the only strings that are created
+	 * The result is the same as splitting the string on ":" and ";" and trimming the parts, except that a ";" in a quoted string does not split
+	 */
+	static MimeHeader parseHeader(char [] headerData, int offset, int length) throws ParseException, IOException {
+		int end = offset + length;
+		int separatorIndex = -1;
+		for (int i = offset; i < end; i++) {
+			if (headerData[i] == ':') {
+				separatorIndex = i;
+				break;
 			}
-			return headerData;
 		}
-		catch (UnsupportedEncodingException e) {
-			throw new ParseException(e.getMessage(), 0);
+		if (separatorIndex < 0)
+			throw new ParseException("The header does not contain a valid separator: " + new String(headerData, offset, length), 1);
+		int nameStart = offset, nameEnd = separatorIndex;
+		while (nameStart < nameEnd && headerData[nameStart] <= ' ')
+			nameStart++;
+		while (nameEnd > nameStart && headerData[nameEnd - 1] <= ' ')
+			nameEnd--;
+		// well known names share the same instance
+		String name = HeaderNames.getCanonical(headerData, nameStart, nameEnd);
+		if (name == null)
+			name = new String(headerData, nameStart, nameEnd - nameStart);
+		List<String> parts = new ArrayList<String>();
+		int partStart = separatorIndex + 1;
+		// like String.split(), empty parts at the end are dropped
+		int lastNonEmpty = 0;
+		boolean quoted = false;
+		for (int i = partStart; i <= end; i++) {
+			if (i + 1 < end && quoted && headerData[i] == '\\') {
+				i++;
+			}
+			else if (i < end && headerData[i] == '"') {
+				quoted = !quoted;
+			}
+			else if (i == end || (headerData[i] == ';' && !quoted)) {
+				parts.add(trimmed(headerData, partStart, i));
+				if (i > partStart)
+					lastNonEmpty = parts.size();
+				partStart = i + 1;
+			}
 		}
+		String value = lastNonEmpty == 0 ? "" : decode(parts.get(0));
+		String [] comments = new String[Math.max(0, lastNonEmpty - 1)];
+		for (int i = 1; i < lastNonEmpty; i++)
+			comments[i - 1] = decode(parts.get(i));
+		return new MimeHeader(name, value, comments);
+	}
+	
+	private static String trimmed(char [] data, int start, int end) {
+		while (start < end && data[start] <= ' ')
+			start++;
+		while (end > start && data[end - 1] <= ' ')
+			end--;
+		return new String(data, start, end - start);
+	}
+	
+	private static String decode(String headerData) {
+		return EncodedWordDecoder.decode(headerData);
 	}
 	
 	public enum EncodingMatchRate {
@@ -137,6 +165,15 @@ public class MimeHeader implements ModifiableHeader {
 		this.comments = comments == null || comments.length == 0 ? new ArrayList<String>() : new ArrayList<String>(Arrays.asList(comments));
 	}
 	
+	/**
+	 * Sets what was parsed, this does not count as a modification
+	 */
+	void initialize(String name, String value, String...comments) {
+		this.name = name;
+		this.value = value;
+		this.comments = new ArrayList<String>(Arrays.asList(comments));
+	}
+	
 	public String getName() {
 		return name;
 	}
@@ -153,12 +190,14 @@ public class MimeHeader implements ModifiableHeader {
 	}
 	
 	public void setComments(String...comments) {
+		modified();
 		this.comments = new ArrayList<String>();
 		this.comments.addAll(Arrays.asList(comments));
 	}
 	
 	@Override
 	public void addComment(String...comments) {
+		modified();
 		if (this.comments == null) {
 			this.comments = new ArrayList<String>();
 		}
@@ -280,21 +319,48 @@ public class MimeHeader implements ModifiableHeader {
 
 	@Override
 	public void setName(String name) {
+		modified();
 		this.name = name;
 	}
 
 	@Override
 	public void setValue(String value) {
+		modified();
 		this.value = value;
 	}
+	
+	int getModifications() {
+		return modifications;
+	}
+	
+	static long getAllModifications() {
+		return ALL_MODIFICATIONS.get();
+	}
+	
+	private void modified() {
+		modifications++;
+		ALL_MODIFICATIONS.incrementAndGet();
+	}
+	
+	Object getStructured() {
+		return structured != null && structuredModifications == modifications ? structured : null;
+	}
+	
+	void setStructured(Object structured) {
+		this.structured = structured;
+		this.structuredModifications = modifications;
+	}
 
+	/**
+	 * Headers are equal if their name, value and comments are, regardless of the implementation
+	 */
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((comments == null) ? 0 : comments.hashCode());
-		result = prime * result + ((name == null) ? 0 : name.hashCode());
-		result = prime * result + ((value == null) ? 0 : value.hashCode());
+		result = prime * result + Arrays.hashCode(getComments());
+		result = prime * result + ((getName() == null) ? 0 : getName().hashCode());
+		result = prime * result + ((getValue() == null) ? 0 : getValue().hashCode());
 		return result;
 	}
 
@@ -303,38 +369,18 @@ public class MimeHeader implements ModifiableHeader {
 		if (this == obj) {
 			return true;
 		}
-		else if (obj == null) {
-			return false;
-		}
-		if (getClass() != obj.getClass()) {
-			return false;
-		}
-		MimeHeader other = (MimeHeader) obj;
-		if (comments == null) {
-			if (other.comments != null) {
-				return false;
-			}
-		}
-		else if (!comments.equals(other.comments)) {
+		else if (!(obj instanceof Header)) {
 			return false;
 		}
-		if (name == null) {
-			if (other.name != null) {
-				return false;
-			}
-		}
-		else if (!name.equals(other.name)) {
+		Header other = (Header) obj;
+		if (getName() == null ? other.getName() != null : !getName().equals(other.getName())) {
 			return false;
 		}
-		if (value == null) {
-			if (other.value != null) {
-				return false;
-			}
-		}
-		else if (!value.equals(other.value)) {
+		if (getValue() == null ? other.getValue() != null : !getValue().equals(other.getValue())) {
 			return false;
 		}
-		return true;
+		String [] comments = other.getComments();
+		return Arrays.equals(getComments(), comments == null ? new String[0] : comments);
 	}
 
 	@XmlTransient
@@ -0,0 +1,493 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.Part;
+
+/**
+ * A compact representation of a parsed part tree, it only keeps the positions of the parts in parallel arrays
+ * The parts are stored in document order (a parent always comes before its children) so the descendants of a part are always right behind it
+ * The headers are not kept, they are the bytes between the offset of the part and its body offset and are reparsed when the part is opened
+ * Only headers that can not be found in the data (e.g. passed in to the parser or chunked trailers) are kept as is
+ *
+ * You can open the index on the original resource to get a part tree, the children of multiparts are only created when they are accessed
+ *
+ * The index can be persisted as a sidecar of the resource with write() and loaded again with read()
+ * The sidecar also contains the header blocks so reopening a message only has to read the first and last block of the data (for the fingerprint)
+ */
+public class MimeIndex {
+
+	private static final int MAGIC = 0x4D494458;
+	private static final int VERSION = 2;
+
+	/**
+	 * The amount of bytes at the start and at the end of the data that are checked to see if the sidecar is stale
+	 */
+	private static final int FINGERPRINT_SIZE = 65536;
+
+	/**
+	 * Sanity limits for the sidecar, a corrupt sidecar should not be able to trigger huge allocations
+	 */
+	private static final int MAX_HEADERS = 65536;
+	private static final int MAX_LENGTH = 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int partCount;
+
+	/**
+	 * The index of the parent, -1 for the root
+	 */
+	private int [] parents;
+
+	/**
+	 * The sequence number of the part in its parent
+	 */
+	private int [] partNumbers;
+
+	/**
+	 * The amount of parts in the subtree of a part (excluding itself)
+	 */
+	private int [] descendants;
+
+	/**
+	 * The absolute offset of the part in the data, this is also where the header block starts
+	 */
+	private long [] offsets;
+
+	/**
+	 * The offset of the body relative to the offset, this is also the length of the header block
+	 */
+	private long [] bodyOffsets;
+
+	/**
+	 * The size of the part (0 means until the end of the data)
+	 */
+	private long [] sizes;
+
+	/**
+	 * Headers that are not in the data itself
+	 */
+	private Map<Integer, Header[]> detachedHeaders = new HashMap<Integer, Header[]>();
+
+	/**
+	 * The raw header blocks, these are only available when the index was read from a sidecar
+	 */
+	private byte [][] headerBlocks;
+
+	/**
+	 * The size, last modified and checksum of the data the sidecar was written for, the size is -1 and the last modified 0 if it is not known
+	 */
+	private long fingerprintSize = -1, fingerprintModified, fingerprintChecksum;
+
+	MimeIndex(int capacity) {
+		parents = new int[capacity];
+		partNumbers = new int[capacity];
+		descendants = new int[capacity];
+		offsets = new long[capacity];
+		bodyOffsets = new long[capacity];
+		sizes = new long[capacity];
+	}
+	
+	private void ensureCapacity(int capacity) {
+		if (capacity > parents.length) {
+			capacity = Math.max(capacity, parents.length * 2);
+			parents = Arrays.copyOf(parents, capacity);
+			partNumbers = Arrays.copyOf(partNumbers, capacity);
+			descendants = Arrays.copyOf(descendants, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			bodyOffsets = Arrays.copyOf(bodyOffsets, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+		}
+	}
+
+	/**
+	 * Builds an index for a parsed part tree, the tree itself is no longer needed afterwards
+	 */
+	public static MimeIndex build(ParsedMimePart root) {
+		MimeIndex index = new MimeIndex(16);
+		index.add(root, -1, 0);
+		index.trim();
+		return index;
+	}
+
+	private int add(ParsedMimePart part, int parent, long parentOffset) {
+		int position = partCount++;
+		ensureCapacity(partCount);
+		long offset = parentOffset + part.getRelativeOffset();
+		parents[position] = parent;
+		partNumbers[position] = part.getPartNumber();
+		offsets[position] = offset;
+		bodyOffsets[position] = part.getBodyOffset();
+		sizes[position] = part.getSize();
+		Header [] headers = part.getHeaders();
+		// if there is no header block (e.g. the headers were passed in) or the headers were extended (chunked trailers), we need to keep them
+		if (headers.length > 0 && (part.getBodyOffset() == 0 || "chunked".equalsIgnoreCase(MimeUtils.getTransferEncoding(headers)))) {
+			detachedHeaders.put(position, headers);
+		}
+		// only the children that are in the data are indexed, other multiparts (e.g. encrypted) generate their own children when parsed
+		if (hasIndexedChildren(part, headers)) {
+			for (Part child : (ParsedMimeMultiPart) part) {
+				add((ParsedMimePart) child, position, offset);
+			}
+		}
+		descendants[position] = partCount - position - 1;
+		return position;
+	}
+
+	private static boolean hasIndexedChildren(ParsedMimePart part, Header...headers) {
+		return part instanceof ParsedMimeMultiPart && MimeUtils.getBoundary(headers) != null;
+	}
+
+	void trim() {
+		parents = Arrays.copyOf(parents, partCount);
+		partNumbers = Arrays.copyOf(partNumbers, partCount);
+		descendants = Arrays.copyOf(descendants, partCount);
+		offsets = Arrays.copyOf(offsets, partCount);
+		bodyOffsets = Arrays.copyOf(bodyOffsets, partCount);
+		sizes = Arrays.copyOf(sizes, partCount);
+	}
+
+	/**
+	 * Opens the root part on the resource that was indexed, no data is read except for the headers of the root
+	 */
+	public ParsedMimePart open(ReadableResource resource, MimeParser parser) throws ParseException, IOException {
+		return open(0, null, resource, parser);
+	}
+
+	/**
+	 * Creates the part at the given position, if it is a multipart its children will be created from the index when needed
+	 */
+	ParsedMimePart open(int position, ParsedMimeMultiPart parent, ReadableResource resource, MimeParser parser) throws ParseException, IOException {
+		Header [] headers = getHeaders(position, resource);
+		ParsedMimePart part = parser.newHandler(MimeUtils.getContentType(headers).toLowerCase());
+		part.setParser(parser);
+		part.setResource(parent == null ? resource : null);
+		part.setHeader(headers);
+		part.setOffset(parent == null ? offsets[position] : offsets[position] - offsets[parents[position]]);
+		part.setBodyOffset(bodyOffsets[position]);
+		part.setSize(sizes[position]);
+		part.setParent(parent, partNumbers[position]);
+		if (hasIndexedChildren(part, headers)) {
+			((ParsedMimeMultiPart) part).setIndex(this, position);
+		}
+		if (part instanceof ParseablePart) {
+			((ParseablePart) part).parse();
+		}
+		return part;
+	}
+
+	/**
+	 * Adds the children of the indexed part to the multipart
+	 */
+	void openChildren(ParsedMimeMultiPart multiPart, int position) throws ParseException, IOException {
+		int end = position + descendants[position];
+		for (int child = position + 1; child <= end; child += descendants[child] + 1) {
+			multiPart.addParts(open(child, multiPart, multiPart.getResource(), multiPart.getParser()));
+		}
+	}
+
+	/**
+	 * Reparses the header block of a part
+	 */
+	Header [] getHeaders(int position, ReadableResource resource) throws ParseException, IOException {
+		Header [] headers = detachedHeaders.get(position);
+		if (headers != null) {
+			return headers;
+		}
+		HeaderScanner scanner = new HeaderScanner();
+		if (headerBlocks != null) {
+			scanner.scan(headerBlocks[position], 0, headerBlocks[position].length);
+		}
+		else if (bodyOffsets[position] > 0) {
+			ReadableContainer<ByteBuffer> readable = MimeUtils.getReadable(resource, offsets[position]);
+			boolean positional = readable != null;
+			if (!positional) {
+				readable = resource.getReadable();
+			}
+			try {
+				if (!positional) {
+					IOUtils.skipBytes(readable, offsets[position]);
+				}
+				byte [] bytes = IOUtils.toBytes(IOUtils.limitReadable(readable, bodyOffsets[position]));
+				scanner.scan(bytes, 0, bytes.length);
+			}
+			finally {
+				readable.close();
+			}
+		}
+		return scanner.getHeaders();
+	}
+
+	public int getPartCount() {
+		return partCount;
+	}
+
+	/**
+	 * Writes the index to a sidecar, the resource is the one that was indexed and is needed for the fingerprint and the header blocks
+	 * The header blocks are read in a single pass as the parts are stored in document order
+	 */
+	public void write(WritableContainer<ByteBuffer> output, ReadableResource resource) throws IOException {
+		DataOutputStream data = new DataOutputStream(IOUtils.toOutputStream(output));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeLong(resource instanceof FiniteResource ? ((FiniteResource) resource).getSize() : -1);
+		data.writeLong(lastModified(resource));
+		data.writeLong(checksum(resource));
+		data.writeInt(partCount);
+		for (int i = 0; i < partCount; i++) {
+			data.writeInt(parents[i]);
+			data.writeInt(partNumbers[i]);
+			data.writeInt(descendants[i]);
+			data.writeLong(offsets[i]);
+			data.writeLong(bodyOffsets[i]);
+			data.writeLong(sizes[i]);
+		}
+		data.writeInt(detachedHeaders.size());
+		for (Map.Entry<Integer, Header[]> entry : detachedHeaders.entrySet()) {
+			data.writeInt(entry.getKey());
+			data.writeInt(entry.getValue().length);
+			for (Header header : entry.getValue()) {
+				writeString(data, header.getName());
+				writeString(data, header.getValue());
+				String [] comments = header.getComments();
+				data.writeInt(comments == null ? 0 : comments.length);
+				if (comments != null) {
+					for (String comment : comments) {
+						writeString(data, comment);
+					}
+				}
+			}
+		}
+		if (headerBlocks != null) {
+			for (int i = 0; i < partCount; i++) {
+				data.writeInt(headerBlocks[i].length);
+				data.write(headerBlocks[i]);
+			}
+		}
+		else {
+			ReadableContainer<ByteBuffer> readable = resource.getReadable();
+			try {
+				long position = 0;
+				for (int i = 0; i < partCount; i++) {
+					// detached headers are not in the data, nor are the headers of parts that start before the last one ended (should not happen)
+					if (detachedHeaders.containsKey(i) || offsets[i] < position) {
+						data.writeInt(0);
+						continue;
+					}
+					IOUtils.skipBytes(readable, offsets[i] - position);
+					byte [] bytes = IOUtils.toBytes(IOUtils.limitReadable(readable, bodyOffsets[i]));
+					position = offsets[i] + bytes.length;
+					data.writeInt(bytes.length);
+					data.write(bytes);
+				}
+			}
+			finally {
+				readable.close();
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * Reads an index from a sidecar, use isStale() to check whether it still matches the data
+	 */
+	public static MimeIndex read(ReadableContainer<ByteBuffer> input) throws ParseException, IOException {
+		DataInputStream data = new DataInputStream(IOUtils.toInputStream(input));
+		if (data.readInt() != MAGIC) {
+			throw new ParseException("Not a mime index", 0);
+		}
+		int version = data.readInt();
+		if (version != VERSION) {
+			throw new ParseException("Unsupported mime index version: " + version, 0);
+		}
+		long fingerprintSize = data.readLong();
+		long fingerprintModified = data.readLong();
+		long fingerprintChecksum = data.readLong();
+		int partCount = data.readInt();
+		if (partCount <= 0) {
+			throw new ParseException("Invalid part count in mime index: " + partCount, 0);
+		}
+		// the arrays grow as the parts are actually read so the part count itself can not trigger a large allocation
+		MimeIndex index = new MimeIndex(Math.min(partCount, 16));
+		index.fingerprintSize = fingerprintSize;
+		index.fingerprintModified = fingerprintModified;
+		index.fingerprintChecksum = fingerprintChecksum;
+		for (int i = 0; i < partCount; i++) {
+			index.ensureCapacity(i + 1);
+			index.partCount = i + 1;
+			index.parents[i] = data.readInt();
+			index.partNumbers[i] = data.readInt();
+			index.descendants[i] = data.readInt();
+			index.offsets[i] = data.readLong();
+			index.bodyOffsets[i] = data.readLong();
+			index.sizes[i] = data.readLong();
+			if (index.parents[i] >= i || (i > 0 && index.parents[i] < 0) || index.descendants[i] < 0 || index.descendants[i] >= partCount - i) {
+				throw new ParseException("Invalid structure in mime index for part " + i, 0);
+			}
+		}
+		index.trim();
+		int detached = checkLength(data.readInt(), partCount, "detached headers");
+		for (int i = 0; i < detached; i++) {
+			int position = data.readInt();
+			if (position < 0 || position >= partCount) {
+				throw new ParseException("Invalid position in mime index: " + position, 0);
+			}
+			Header [] headers = new Header[checkLength(data.readInt(), MAX_HEADERS, "headers")];
+			for (int j = 0; j < headers.length; j++) {
+				String name = readString(data);
+				String value = readString(data);
+				String [] comments = new String[checkLength(data.readInt(), MAX_HEADERS, "comments")];
+				for (int k = 0; k < comments.length; k++) {
+					comments[k] = readString(data);
+				}
+				headers[j] = new MimeHeader(name, value, comments);
+			}
+			index.detachedHeaders.put(position, headers);
+		}
+		index.headerBlocks = new byte[partCount][];
+		for (int i = 0; i < partCount; i++) {
+			index.headerBlocks[i] = new byte[checkLength(data.readInt(), MAX_LENGTH, "header block")];
+			data.readFully(index.headerBlocks[i]);
+		}
+		return index;
+	}
+
+	/**
+	 * Reads the sidecar and opens it on the resource, if the sidecar is stale null is returned and the resource has to be parsed again
+	 */
+	public static ParsedMimePart load(ReadableContainer<ByteBuffer> input, ReadableResource resource, MimeParser parser) throws ParseException, IOException {
+		MimeIndex index = read(input);
+		return index.isStale(resource) ? null : index.open(resource, parser);
+	}
+
+	/**
+	 * Checks the fingerprint of the sidecar against the resource, indexes that were not read from a sidecar have no fingerprint and are never stale
+	 */
+	public boolean isStale(ReadableResource resource) throws IOException {
+		if (headerBlocks == null) {
+			return false;
+		}
+		if (resource instanceof FiniteResource && ((FiniteResource) resource).getSize() != fingerprintSize) {
+			return true;
+		}
+		if (lastModified(resource) != fingerprintModified) {
+			return true;
+		}
+		return checksum(resource) != fingerprintChecksum;
+	}
+
+	/**
+	 * The last modified of the file behind the resource, 0 if there is no file
+	 */
+	private static long lastModified(ReadableResource resource) {
+		File file = MimeUtils.getFile(resource);
+		return file == null ? 0 : file.lastModified();
+	}
+
+	/**
+	 * A checksum of the first and last block of the data, if the size is not known we can not find the last block so all the data is checked
+	 */
+	private static long checksum(ReadableResource resource) throws IOException {
+		long size = resource instanceof FiniteResource ? ((FiniteResource) resource).getSize() : -1;
+		CRC32 crc = new CRC32();
+		ReadableContainer<ByteBuffer> readable = resource.getReadable();
+		try {
+			if (size < 0 || size <= FINGERPRINT_SIZE * 2) {
+				update(crc, readable, Long.MAX_VALUE);
+				return crc.getValue();
+			}
+			update(crc, readable, FINGERPRINT_SIZE);
+			ReadableContainer<ByteBuffer> tail = MimeUtils.getReadable(resource, size - FINGERPRINT_SIZE);
+			if (tail == null) {
+				IOUtils.skipBytes(readable, size - FINGERPRINT_SIZE * 2);
+				update(crc, readable, FINGERPRINT_SIZE);
+			}
+			else {
+				try {
+					update(crc, tail, FINGERPRINT_SIZE);
+				}
+				finally {
+					tail.close();
+				}
+			}
+			return crc.getValue();
+		}
+		finally {
+			readable.close();
+		}
+	}
+
+	private static void update(CRC32 crc, ReadableContainer<ByteBuffer> readable, long amount) throws IOException {
+		InputStream input = IOUtils.toInputStream(IOUtils.limitReadable(readable, amount));
+		byte [] bytes = new byte[8192];
+		int read;
+		while ((read = input.read(bytes)) > 0) {
+			crc.update(bytes, 0, read);
+		}
+	}
+
+	private static int checkLength(int length, int max, String type) throws ParseException {
+		if (length < 0 || length > max) {
+			throw new ParseException("Invalid amount of " + type + " in mime index: " + length, 0);
+		}
+		return length;
+	}
+
+	private static void writeString(DataOutputStream data, String value) throws IOException {
+		if (value == null) {
+			data.writeInt(-1);
+			return;
+		}
+		byte [] bytes = value.getBytes(UTF8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	private static String readString(DataInputStream data) throws IOException {
+		int length = data.readInt();
+		if (length < 0) {
+			return null;
+		}
+		else if (length > MAX_LENGTH) {
+			throw new IOException("Invalid string length in mime index: " + length);
+		}
+		byte [] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
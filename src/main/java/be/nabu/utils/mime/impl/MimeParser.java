@@ -17,26 +17,37 @@
 
 package be.nabu.utils.mime.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.KeyStore;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.CharBuffer;
 import be.nabu.utils.io.api.CountingReadableContainer;
 import be.nabu.utils.io.api.ReadableContainer;
-import be.nabu.utils.io.containers.TrailingContainer;
+import be.nabu.utils.io.api.WritableContainer;
 import be.nabu.utils.io.containers.bytes.ReadableStraightCharToByteContainer;
 import be.nabu.utils.io.containers.chars.ReadableStraightByteToCharContainer;
 import be.nabu.utils.mime.api.ContentTransferTranscoder;
 import be.nabu.utils.mime.api.ExpectContinueHandler;
 import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.api.HeaderProvider;
+import be.nabu.utils.mime.api.MimeEventHandler;
+import be.nabu.utils.mime.api.PartFilter;
 import be.nabu.utils.mime.api.PartParser;
 import be.nabu.utils.mime.util.ChunkedReadableByteContainer;
+import be.nabu.utils.mime.util.MappedFile;
+import be.nabu.utils.mime.util.ScanningByteContainer;
+import be.nabu.utils.mime.util.ContentCache;
+import be.nabu.utils.mime.util.MemoryBudget;
+import be.nabu.utils.mime.util.SpoolingResource;
+import be.nabu.utils.mime.util.TrailingWhitespaceContainer;
 import be.nabu.utils.security.api.ManagedKeyStore;
 
 /**
@@ -48,6 +59,7 @@ import be.nabu.utils.security.api.ManagedKeyStore;
  * 		> use a bigger buffer to convert byte to char (or simply stick to bytes?)
  * 		> use the backed delimited (reads chunks instead of one by one)
  * 		> for http: how to make sure the remainder of this buffer is "pushed back" to the socket? > chain it with next request?
+ * 			> the MimeStreamParser does this for consecutive messages on the same connection and exposes the remainder
  * 			> need to update handling of linefeeds etc
  * 			> because we are using dynamic resource, the remainder will also be in that resource, is this a problem?
  * Is the buffering of the bytes already reading too much? or is default http request/response behavior making this work accidently?
@@ -108,11 +120,57 @@ public class MimeParser implements PartParser {
 	 */
 	private int trimSize = 10;
 	
+	/**
+	 * When enabled the data is parsed as bytes instead of being converted to chars first
+	 * The resulting parts (offsets, sizes, headers) are identical, it is just a lot less work per byte, especially for large binary parts
+	 */
+	private boolean byteNative = false;
+	
+	/**
+	 * When enabled, local files are memory mapped and parsed straight from the mapping (which implies byte native parsing)
+	 * The content of the parts is also read from the mapping so repeated access to the same large file is served from the page cache
+	 */
+	private boolean memoryMapped = false;
+	
+	/**
+	 * When enabled, parse() only parses the root part, the children of multiparts are parsed when they are requested (which implies byte native parsing)
+	 * If you only need the first few parts, the rest of the data is never read
+	 * Unless the data can be reopened at an offset (local files, positional resources), it is kept open until all the parts are parsed
+	 */
+	private boolean lazy = false;
+	
+	/**
+	 * The amount of data that is kept in memory when spooling data that can only be read once
+	 */
+	private int spoolSize = 1024 * 1024;
+	
+	/**
+	 * The budget the spooled memory is reserved from, if none is set the global one is used
+	 */
+	private MemoryBudget budget;
+	
+	/**
+	 * If set, the decoded content of binary parts is cached so reading it again does not decode it again
+	 */
+	private ContentCache contentCache;
+	
+	/**
+	 * When set, only the child parts that are accepted by the filter are parsed (which implies byte native parsing)
+	 * The other parts (and all their children) are skipped by looking for the next boundary, they don't show up in the multipart at all
+	 * The part numbers are not affected: the default name of a part is the same whether or not the parts before it were skipped
+	 */
+	private PartFilter filter;
+	
 	/**
 	 * The transcoder used (if any)
 	 */
 	private ContentTransferTranscoder transcoder;
 	
+	/**
+	 * The trimmer that is not in use (if any)
+	 */
+	private AtomicReference<TrailingWhitespaceContainer> trimmers = new AtomicReference<TrailingWhitespaceContainer>();
+	
 	public ContentTransferTranscoder getTranscoder() {
 		if (transcoder == null)
 			transcoder = new MimeContentTransferTranscoder();
@@ -129,6 +187,31 @@ public class MimeParser implements PartParser {
 	}
 	
 	public ParsedMimePart parse(ReadableResource resource, Header...headers) throws ParseException, IOException {
+		File file = memoryMapped ? MimeUtils.getFile(resource) : null;
+		MappedFile mapping = file == null ? null : new MappedFile(file);
+		if (lazy) {
+			return new MimeByteParser(this, new ScanningByteContainer(mapping == null ? resource.getReadable() : mapping.getReadable(0, mapping.getSize()))).parseLazily(resource, mapping, headers);
+		}
+		else if (mapping != null) {
+			ScanningByteContainer bytes = new ScanningByteContainer(mapping.getReadable(0, mapping.getSize()));
+			try {
+				ParsedMimePart part = new MimeByteParser(this, bytes, mapping).parse(resource, headers);
+				part.setMapping(mapping);
+				return part;
+			}
+			finally {
+				bytes.close();
+			}
+		}
+		else if (byteNative || filter != null) {
+			ScanningByteContainer bytes = new ScanningByteContainer(resource.getReadable());
+			try {
+				return new MimeByteParser(this, bytes).parse(resource, headers);
+			}
+			finally {
+				bytes.close();
+			}
+		}
 		// you could process it as bytes but then we need to constantly convert it to chars when needed (boundary checking, header parsing,...)
 		// note that the converter used maps bytes 1-1 to chars so the range is 0-256, the same range as the original code page 437
 		// the following line initializes the data using the code page
@@ -146,6 +229,58 @@ public class MimeParser implements PartParser {
 		}
 	}
 	
+	/**
+	 * Parses data that can only be read once (e.g. a socket), the parts need to reread their content so the data is spooled as it is parsed
+	 * The first bytes (up to the spool size) are kept in memory, the rest is spilled to a temporary file
+	 * The returned part owns the spool, close it when you are done with the parts to release the memory and the temporary file
+	 */
+	public ParsedMimePart parse(ReadableContainer<ByteBuffer> data, Header...headers) throws ParseException, IOException {
+		SpoolingResource spool = new SpoolingResource(data, spoolSize, getBudget());
+		boolean parsed = false;
+		try {
+			ParsedMimePart part = parse(spool, headers);
+			part.setOwned(spool);
+			parsed = true;
+			return part;
+		}
+		finally {
+			if (!parsed) {
+				spool.close();
+			}
+		}
+	}
+	
+	/**
+	 * Parses the data as it streams by and pushes the parts to the handler, nothing is kept so the data never has to be reread
+	 * If you want to decode, the content transfer encoding (e.g. base64) of the body is decoded before it is passed on
+	 * The content before the first boundary of a multipart is not reported, the data is not closed
+	 */
+	public void parse(ReadableContainer<ByteBuffer> data, MimeEventHandler handler, boolean decode, Header...headers) throws ParseException, IOException {
+		new MimeByteParser(this, new ScanningByteContainer(data)).parse(handler, decode, headers);
+	}
+	
+	/**
+	 * Only reads the headers of the root, the returned head gives you the rest of the data (the body) untouched
+	 * Note that the data is buffered so you must read the body from the head, not from the original data
+	 */
+	public ParsedMimeHead parseHead(ReadableContainer<ByteBuffer> data) throws ParseException, IOException {
+		return new MimeByteParser(this, new ScanningByteContainer(data)).parseHead(null, false);
+	}
+	
+	/**
+	 * Only reads the headers of the root and, if requested, the headers of its direct children (if it is a multipart)
+	 * Nothing is calculated for the content, it is only scanned for boundaries (and skipped entirely if a child has a content length)
+	 */
+	public ParsedMimeHead parseHead(ReadableResource resource, boolean children) throws ParseException, IOException {
+		ScanningByteContainer bytes = new ScanningByteContainer(resource.getReadable());
+		try {
+			return new MimeByteParser(this, bytes).parseHead(resource, children);
+		}
+		finally {
+			bytes.close();
+		}
+	}
+	
 	ParsedMimePart parse(CountingReadableContainer<CharBuffer> data, ParsedMimeMultiPart parent, int partNumber, Header...headers) throws ParseException, IOException {
 		return parse(data, parent, partNumber, null, false, requireKnownContentLength, headers);
 	}
@@ -332,16 +467,35 @@ public class MimeParser implements PartParser {
 		}
 		// we need to keep track of the tail of the data, there _should_ be two linefeeds (\r\n) be before the boundary that can be safely ignored
 		// additionally we have a configurable trimsize
-		TrailingContainer<CharBuffer> trailer = new TrailingContainer<CharBuffer>(data, 4 + trimSize);
-		IOUtils.copyChars(trailer, IOUtils.newCharSink());
-		String trailing = IOUtils.toString(trailer.getTrailing());
-		String trailingWithoutLinefeeds = trailing.replaceAll("[\\s]+$", "");
+		TrailingWhitespaceContainer trimmer = acquireTrimmer(null);
+		trimmer.writeChars(data);
+		int trailingWhitespace = trimmer.getTrailingWhitespace();
+		releaseTrimmer(trimmer);
 		// this skips the ending linefeeds
 		if (headerProvider != null)
 			part.setHeader(headerProvider.getAdditionalHeaders());
 		// the boundary is preceeded by two "--" so ignore an additional 2
-		return trailing.length() - trailingWithoutLinefeeds.length() + (boundary == null ? 0 : boundary.length() + 2);
-	}	
+		return trailingWhitespace + (boundary == null ? 0 : boundary.length() + 2);
+	}
+	
+	/**
+	 * Returns a container that keeps track of the trailing whitespace of a content part (up to 4 + the trim size), release it once you are done
+	 * The same one is reused for every content part, a parser can be used by multiple threads at once (e.g. when parsing lazily) so a thread that finds it in use gets a new one
+	 */
+	TrailingWhitespaceContainer acquireTrimmer(WritableContainer<ByteBuffer> parent) {
+		TrailingWhitespaceContainer trimmer = trimmers.getAndSet(null);
+		if (trimmer == null) {
+			return new TrailingWhitespaceContainer(parent, 4 + trimSize);
+		}
+		trimmer.reset(parent, 4 + trimSize);
+		return trimmer;
+	}
+	
+	void releaseTrimmer(TrailingWhitespaceContainer trimmer) {
+		// don't hold on to the parent
+		trimmer.reset(null, 4 + trimSize);
+		trimmers.set(trimmer);
+	}
 	
 	public ManagedKeyStore getKeyStore() {
 		return keyStore;
@@ -428,4 +582,64 @@ public class MimeParser implements PartParser {
 		this.cleanupWhitespaceBetweenBoundaries = cleanupWhitespaceBetweenBoundaries;
 	}
 	
+	public boolean isByteNative() {
+		return byteNative;
+	}
+
+	public void setByteNative(boolean byteNative) {
+		this.byteNative = byteNative;
+	}
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public int getSpoolSize() {
+		return spoolSize;
+	}
+
+	public void setSpoolSize(int spoolSize) {
+		this.spoolSize = spoolSize;
+	}
+
+	public ContentCache getContentCache() {
+		return contentCache;
+	}
+
+	public void setContentCache(ContentCache contentCache) {
+		this.contentCache = contentCache;
+	}
+
+	public MemoryBudget getBudget() {
+		return budget == null ? MemoryBudget.getInstance() : budget;
+	}
+
+	public void setBudget(MemoryBudget budget) {
+		this.budget = budget;
+	}
+
+	public PartFilter getFilter() {
+		return filter;
+	}
+
+	public void setFilter(PartFilter filter) {
+		this.filter = filter;
+	}
+	
+	char [] getAllowedCharactersBetweenBoundaries() {
+		return allowedCharactersBetweenBoundaries;
+	}
+	
 }
@@ -17,11 +17,6 @@
 
 package be.nabu.utils.mime.impl;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.List;
-
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.api.ModifiablePart;
@@ -29,7 +24,7 @@ import be.nabu.utils.mime.api.MultiPart;
 
 abstract public class MimePartBase<T extends MultiPart> implements ModifiablePart {
 
-	private List<Header> headers = new ArrayList<Header>();
+	private HeaderMap headers = new HeaderMap();
 
 	/**
 	 * The URI pointing to the content of this part
@@ -49,17 +44,21 @@ abstract public class MimePartBase<T extends MultiPart> implements ModifiablePar
 	
 	@Override
 	public Header[] getHeaders() {
-		return headers.toArray(new Header[headers.size()]);
+		return headers.getHeaders();
+	}
+	
+	HeaderMap getHeaderMap() {
+		return headers;
 	}
 	
 	@Override
 	public void setHeader(Header...headers){
-		this.headers.addAll(Arrays.asList(headers));
+		this.headers.add(headers);
 	}
 	
 	@Override
 	public String getContentType() {
-		return MimeUtils.getContentType(getHeaders());
+		return headers.getContentType();
 	}
 
 	@Override
@@ -95,15 +94,7 @@ abstract public class MimePartBase<T extends MultiPart> implements ModifiablePar
 	@Override
 	public void removeHeader(String...names) {
 		if (names.length > 0) {
-			List<String> list = new ArrayList<String>();
-			for (String name : names)
-				list.add(name.toLowerCase());
-			Iterator<Header> iterator = headers.iterator();
-			while (iterator.hasNext()) {
-				Header next = iterator.next();
-				if (list.contains(next.getName().toLowerCase()))
-					iterator.remove();
-			}
+			headers.remove(names);
 		}
 	}
 
@@ -0,0 +1,160 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import be.nabu.utils.codec.TranscoderUtils;
+import be.nabu.utils.codec.api.Transcoder;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.MimeEventHandler;
+
+/**
+ * Parses consecutive messages from a single stream of data (e.g. a persistent http connection) and pushes them to a handler
+ * Nothing is read beyond the end of a message unless it was already buffered, that data is the start of the next message
+ * The same buffers are used for all the messages on the stream
+ *
+ * The messages must be delimited (content length, chunked or multipart) and you probably want the mime parser to require a known content length
+ * The data is expected to block until it has data, a container that returns 0 is simply asked again
+ * Like the feed parser this is built on, "Expect: 100-Continue" is not handled
+ */
+public class MimeStreamParser implements Closeable {
+
+	private ReadableContainer<ByteBuffer> data;
+	private MimeFeedParser feedParser;
+
+	/**
+	 * The data that was read but not yet fed
+	 */
+	private ByteBuffer block;
+
+	private boolean started, ended;
+
+	public MimeStreamParser(ReadableContainer<ByteBuffer> data) {
+		this(new MimeParser(), data);
+	}
+
+	public MimeStreamParser(MimeParser parser, ReadableContainer<ByteBuffer> data) {
+		this(parser, data, 1024 * 16);
+	}
+
+	public MimeStreamParser(MimeParser parser, ReadableContainer<ByteBuffer> data, int bufferSize) {
+		this.data = data;
+		this.feedParser = new MimeFeedParser(parser, bufferSize);
+		this.block = IOUtils.newByteBuffer(bufferSize, true);
+	}
+
+	/**
+	 * Parses the next message and pushes it to the handler, returns false if the data ended before another message started
+	 * If you want to decode, the content transfer encoding of the body is decoded before it is passed on
+	 */
+	public boolean next(MimeEventHandler handler, boolean decode) throws ParseException, IOException {
+		if (started) {
+			feedParser.reset();
+		}
+		started = true;
+		// check whether there is another message at all
+		while (feedParser.getRemainder().remainingData() == 0 && block.remainingData() == 0) {
+			if (ended || !read()) {
+				return false;
+			}
+		}
+		Header [] headers = null;
+		WritableContainer<ByteBuffer> body = null;
+		while (true) {
+			switch (ended ? feedParser.end() : feedParser.feed(block)) {
+				case NEED_MORE:
+					read();
+					break;
+				case PART_HEADERS:
+					headers = feedParser.getHeaders();
+					handler.onPartStart(headers, feedParser.getDepth());
+					break;
+				case BODY_CHUNK:
+					if (body == null) {
+						body = getBody(handler, decode, headers);
+					}
+					body.write(feedParser.getChunk());
+					break;
+				case TRAILERS:
+					handler.onTrailers(feedParser.getTrailers());
+					break;
+				case PART_END:
+					if (body != null) {
+						// flushes the decoder (if any)
+						body.close();
+						body = null;
+					}
+					handler.onPartEnd(feedParser.getSize());
+					break;
+				case DONE:
+					return true;
+			}
+		}
+	}
+
+	/**
+	 * Reads the next block, returns false if the data has ended
+	 */
+	private boolean read() throws IOException {
+		if (block.remainingData() == 0) {
+			block.truncate();
+		}
+		if (data.read(block) < 0) {
+			ended = true;
+		}
+		return !ended;
+	}
+
+	private WritableContainer<ByteBuffer> getBody(MimeEventHandler handler, boolean decode, Header...headers) {
+		WritableContainer<ByteBuffer> body = new MimeByteParser.HandlerContainer(handler);
+		Transcoder<ByteBuffer> decoder = decode ? MimeUtils.getDecoder(MimeUtils.getContentTransferEncoding(headers)) : null;
+		return decoder == null ? body : TranscoderUtils.wrapWritable(body, decoder);
+	}
+
+	/**
+	 * The absolute position in the data right behind the last message that was parsed
+	 */
+	public long getEnd() {
+		return feedParser.getEnd();
+	}
+
+	/**
+	 * The data that was read beyond the end of the last message that was parsed, this is where the next message starts
+	 * If you hand the connection over to something else (e.g. after a protocol upgrade), this data has to go with it
+	 */
+	public byte [] getRemainder() throws IOException {
+		byte [] taken = IOUtils.toBytes(feedParser.getRemainder());
+		byte [] remainder = Arrays.copyOf(taken, taken.length + (int) block.remainingData());
+		// the block stays as it is, the data might still be parsed
+		block.peek(IOUtils.wrap(remainder, taken.length, remainder.length - taken.length, false));
+		return remainder;
+	}
+
+	@Override
+	public void close() throws IOException {
+		data.close();
+	}
+}
@@ -19,11 +19,17 @@ package be.nabu.utils.mime.impl;
 
 import static be.nabu.utils.io.IOUtils.wrap;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardOpenOption;
 import java.security.cert.X509Certificate;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -32,6 +38,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import be.nabu.libs.resources.api.LocatableResource;
+import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.utils.codec.api.Transcoder;
 import be.nabu.utils.codec.impl.Base64Decoder;
 import be.nabu.utils.codec.impl.Base64Encoder;
@@ -41,6 +49,7 @@ import be.nabu.utils.codec.impl.QuotedPrintableEncoding;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.CharBuffer;
+import be.nabu.utils.io.api.PushbackContainer;
 import be.nabu.utils.io.api.ReadableContainer;
 import be.nabu.utils.io.api.WritableContainer;
 import be.nabu.utils.mime.api.ContentPart;
@@ -49,6 +58,7 @@ import be.nabu.utils.mime.api.ModifiableContentPart;
 import be.nabu.utils.mime.api.ModifiablePart;
 import be.nabu.utils.mime.api.MultiPart;
 import be.nabu.utils.mime.api.Part;
+import be.nabu.utils.mime.util.PositionalResource;
 import be.nabu.utils.security.SignatureType;
 import be.nabu.utils.security.api.ManagedKeyStore;
 
@@ -129,29 +139,14 @@ public class MimeUtils {
 		Map<String, String> values = new HashMap<String, String>();
 		Header header = getHeader(name, headers);
 		if (header != null) {
+			String value = HeaderParameters.tokenize(header.getValue(), header.getComments(), values);
 			// check if the value itself is also a key/value, for example ICAP with X-Infection-Found header:
 			// X-Infection-Found: Type=0; Resolution=2; Threat=Win.Test.EICAR_HDB-1;
-			int indexOf = header.getValue().indexOf('=');
-			if (indexOf > 0) {
-				values.put(header.getValue().substring(0, indexOf).toLowerCase().trim(), header.getValue().substring(indexOf + 1).trim().replaceAll("^\"", "").replaceAll("\"$", ""));
-			}
-			else {
-				values.put("value", header.getValue().toLowerCase().trim());
-			}
-			if (header.getComments() != null) {
-				for (String comment : header.getComments()) {
-					int index = comment.indexOf("=");
-					// invalid parameter
-					if (index < 0)
-						continue;
-					String [] parts = comment.split("[\\s]*=[\\s]*");
-					
-					if (parts.length <= 1)
-						continue;
-					
-					// the value can be quoted, the quotes must be ignored
-					values.put(comment.substring(0, index).toLowerCase().trim(), comment.substring(index + 1).trim().replaceAll("^\"", "").replaceAll("\"$", ""));
-				}
+			// the comments take precedence
+			int indexOf = value.indexOf('=');
+			String key = indexOf > 0 ? value.substring(0, indexOf).toLowerCase().trim() : "value";
+			if (!values.containsKey(key)) {
+				values.put(key, indexOf > 0 ? HeaderParameters.unquote(value.substring(indexOf + 1)) : value.toLowerCase());
 			}
 		}
 		return values;
@@ -197,14 +192,30 @@ public class MimeUtils {
 	}
 	
 	public static Header getHeader(String name, Header...headers) {
-		Header [] result = getHeaders(name, headers);
-		return result.length > 0 ? result[0] : null;
+		for (Header header : headers) {
+			if (HeaderNames.equals(header.getName(), name))
+				return header;
+		}
+		return null;
+	}
+	
+	/**
+	 * The headers of the part as a header map, the parts in this package keep their headers in one so the derived values are only calculated once
+	 */
+	public static HeaderMap getHeaderMap(Part part) {
+		if (part instanceof MimePartBase) {
+			return ((MimePartBase<?>) part).getHeaderMap();
+		}
+		else if (part instanceof PlainMimePart) {
+			return ((PlainMimePart) part).getHeaderMap();
+		}
+		return new HeaderMap(part.getHeaders());
 	}
 	
 	public static Header [] getHeaders(String name, Header...headers) {
 		List<Header> result = new ArrayList<Header>();
 		for (Header header : headers) {
-			if (header.getName().equalsIgnoreCase(name))
+			if (HeaderNames.equals(header.getName(), name))
 				result.add(header);
 		}
 		return result.toArray(new Header[result.size()]);
@@ -229,8 +240,23 @@ public class MimeUtils {
 		}
 	}
 	
+	/**
+	 * The parsed content type or null if there is none
+	 */
+	public static MediaType getMediaType(Header...headers) {
+		return MediaType.parse(getHeader(HeaderNames.CONTENT_TYPE, headers));
+	}
+	
+	/**
+	 * The parsed content disposition or null if there is none
+	 */
+	public static ContentDisposition getContentDisposition(Header...headers) {
+		return ContentDisposition.parse(getHeader(HeaderNames.CONTENT_DISPOSITION, headers));
+	}
+	
 	public static String getBoundary(Header...headers) {
-		return getHeaderAsValues("Content-Type", headers).get("boundary");
+		MediaType mediaType = getMediaType(headers);
+		return mediaType == null ? null : mediaType.getBoundary();
 	}
 	
 	public static String getTransferEncoding(Header...headers) {
@@ -254,28 +280,102 @@ public class MimeUtils {
 	
 	public static Long getContentLength(Header...headers) {
 		Header header = getHeader("Content-Length", headers);
-		return header == null ? null : new Long(header.getValue().trim());
+		return header == null ? null : Long.valueOf(header.getValue().trim());
 	}
 	
 	public static String getContentType(Header...headers) {
-		Header header = getHeader("Content-Type", headers);
+		MediaType mediaType = getMediaType(headers);
 		// the proper default is as per RFC822 text/plain
-		return header == null ? "text/plain" : header.getValue().trim().replaceAll(";.*$", "");
+		return mediaType == null ? "text/plain" : mediaType.getBaseType();
+	}
+	
+	/**
+	 * The content id without the angle brackets
+	 */
+	public static String getContentId(Header...headers) {
+		Header header = getHeader("Content-ID", headers);
+		return header == null || header.getValue() == null ? null : normalizeContentId(header.getValue());
+	}
+	
+	/**
+	 * Turns a "cid:" url (rfc2392) or a content id header value into the bare content id
+	 */
+	public static String normalizeContentId(String contentId) {
+		contentId = contentId.trim();
+		if (contentId.regionMatches(true, 0, "cid:", 0, 4)) {
+			contentId = contentId.substring(4);
+			// the url is url encoded
+			if (contentId.indexOf('%') >= 0) {
+				try {
+					contentId = URLDecoder.decode(contentId.replace("+", "%2B"), "UTF-8");
+				}
+				catch (UnsupportedEncodingException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		if (contentId.startsWith("<") && contentId.endsWith(">")) {
+			contentId = contentId.substring(1, contentId.length() - 1).trim();
+		}
+		return contentId;
+	}
+	
+	/**
+	 * Looks up the child with the given content id (or "cid:" url), the multiparts in this package use an index
+	 */
+	public static Part getChildByContentId(MultiPart multiPart, String contentId) {
+		if (multiPart instanceof ParsedMimeMultiPart) {
+			return ((ParsedMimeMultiPart) multiPart).getChildByContentId(contentId);
+		}
+		else if (multiPart instanceof PlainMimeMultiPart) {
+			return ((PlainMimeMultiPart) multiPart).getChildByContentId(contentId);
+		}
+		contentId = normalizeContentId(contentId);
+		for (Part child : multiPart) {
+			if (contentId.equals(getContentId(child.getHeaders()))) {
+				return child;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Looks up the children with the given content type, the multiparts in this package use an index
+	 */
+	public static List<Part> getChildrenByContentType(MultiPart multiPart, String contentType) {
+		if (multiPart instanceof ParsedMimeMultiPart) {
+			return ((ParsedMimeMultiPart) multiPart).getChildrenByContentType(contentType);
+		}
+		else if (multiPart instanceof PlainMimeMultiPart) {
+			return ((PlainMimeMultiPart) multiPart).getChildrenByContentType(contentType);
+		}
+		contentType = contentType.replaceAll(";.*$", "").trim();
+		List<Part> children = new ArrayList<Part>();
+		for (Part child : multiPart) {
+			if (contentType.equalsIgnoreCase(getContentType(child.getHeaders()))) {
+				children.add(child);
+			}
+		}
+		return children;
 	}
 	
 	public static String getName(Header...headers) {
 		// the "proper" way to send along a filename is to send it in the content-disposition
-		String name = getHeaderAsValues("Content-Disposition", headers).get("filename");
+		ContentDisposition disposition = getContentDisposition(headers);
+		String name = disposition == null ? null : disposition.getFilename();
 		
 		// however a lot of clients don't use this (yet) and instead put it in the content-type
-		if (name == null)
-			name = getHeaderAsValues("Content-Type", headers).get("name");
+		if (name == null) {
+			MediaType mediaType = getMediaType(headers);
+			name = mediaType == null ? null : mediaType.getName();
+		}
 		
 		return name;
 	}
 	
 	public static String getFormName(Header...headers) {
-		return getHeader("Content-Disposition", headers).getValue().equals("form-data") ? getHeaderAsValues("Content-Disposition", headers).get("name") : null;
+		ContentDisposition disposition = getContentDisposition(headers);
+		return disposition != null && disposition.isFormData() ? disposition.getName() : null;
 	}
 
 	public static void format(Part part, WritableContainer<ByteBuffer> output) {
@@ -312,72 +412,103 @@ public class MimeUtils {
 	}
 	
 	public static boolean isInline(Header...headers) {
-		String disposition = getHeaderAsValues("Content-Disposition", headers).get("value");
-		return (disposition != null && disposition.equalsIgnoreCase("inline")) || getContentType(headers).startsWith("text/"); 
+		ContentDisposition disposition = getContentDisposition(headers);
+		return (disposition != null && disposition.isInline()) || getContentType(headers).startsWith("text/"); 
 	}
 	
 	public static String getCharset(Header...headers) {
-		String charset = getHeaderAsValues("Content-Type", headers).get("charset");
-		// the default charset as defined by RFC822 only applies to text/* types
-		return charset == null && getContentType(headers).startsWith("text/") ? "us-ascii" : charset;
+		MediaType mediaType = getMediaType(headers);
+		String charset = mediaType == null ? null : mediaType.getCharset();
+		// the default charset as defined by RFC822 only applies to text/* types (which is also the default type)
+		return charset == null && (mediaType == null || mediaType.getBaseType().startsWith("text/")) ? "us-ascii" : charset;
 	}
 	
 	public static Long getSize(Header...headers) {
 		Header header = getHeader("Content-Length", headers);
 		if (header != null)
-			return new Long(header.getValue().trim());
+			return Long.valueOf(header.getValue().trim());
 		// in theory the content-disposition can also contain a "size" param
-		String size = getHeaderAsValues("Content-Disposition", headers).get("size");
-		return size != null ? new Long(size) : null;
+		ContentDisposition disposition = getContentDisposition(headers);
+		return disposition != null ? disposition.getSize() : null;
 	}
 
+	/**
+	 * Opens the resource at the given offset without reading the data before it, this returns null if the resource does not support it
+	 * Apart from positional resources this works for local files
+	 */
+	public static ReadableContainer<ByteBuffer> getReadable(ReadableResource resource, long offset) throws IOException {
+		if (resource instanceof PositionalResource) {
+			return ((PositionalResource) resource).getReadable(offset);
+		}
+		File file = getFile(resource);
+		if (file != null) {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				channel.position(offset);
+			}
+			catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			return wrap(Channels.newInputStream(channel));
+		}
+		return null;
+	}
+	
+	/**
+	 * Whether getReadable() can open the resource at an offset
+	 */
+	static boolean isPositional(ReadableResource resource) {
+		return resource instanceof PositionalResource || getFile(resource) != null;
+	}
+	
+	/**
+	 * Returns the local file behind the resource, if any
+	 */
+	static File getFile(ReadableResource resource) {
+		if (resource instanceof LocatableResource) {
+			URI uri = ((LocatableResource) resource).getUri();
+			if (uri != null && "file".equals(uri.getScheme())) {
+				File file = new File(uri);
+				if (file.isFile()) {
+					return file;
+				}
+			}
+		}
+		return null;
+	}
+	
 	public static Header [] readHeaders(ReadableContainer<CharBuffer> data) throws ParseException, IOException {
 		return readHeaders(data, false);
 	}
 	
+	@SuppressWarnings("unchecked")
 	public static Header [] readHeaders(ReadableContainer<CharBuffer> data, boolean mustFinish) throws ParseException, IOException {
-		char [] singleChar = new char[1];
-		char [] space = new char [] { ' ' };
-		List<Header> headers = new ArrayList<Header>();
-		char previousChar = 0;
-		// amount of linebreaks (2 = end of headers)
-		int lineBreaks = 0;
-		// temporarily keep the header here
-		CharBuffer header = IOUtils.newCharBuffer();
-		boolean unfolding = false;
-		// stop when two linebreaks are reached (end of headers)
-		while(lineBreaks < 2 && data.read(IOUtils.wrap(singleChar, false)) == 1) {
-			char currentChar = singleChar[0];
-			// you can "fold" a long header by adding a linefeed followed by at least one whitespace
-			if (previousChar == '\n' && (currentChar == ' ' || currentChar == '\t')) {
-				unfolding = true;
-				// write a single space to the header
-				header.write(space);
+		HeaderScanner scanner = new HeaderScanner();
+		// if we can push back whatever we read too much, we can read in blocks
+		if (data instanceof PushbackContainer) {
+			char [] block = new char[512];
+			while (!scanner.isFinished()) {
+				int read = (int) data.read(IOUtils.wrap(block, false));
+				if (read <= 0)
+					break;
+				int consumed = scanner.scan(block, 0, read);
+				if (consumed < read)
+					((PushbackContainer<CharBuffer>) data).pushback(IOUtils.wrap(block, consumed, read - consumed, true));
 			}
-			// we can skip any space when unfolding (TODO: may need to be any whitespace)
-			else if (unfolding && (currentChar == ' ' || currentChar == '\t'))
-				continue;
-			// line ending, this "should" be preceeded by a \r but this is not explicitly checked so incorrect line endings are allowed
-			else if (currentChar == '\n')
-				lineBreaks++;
-			else if (currentChar == '\r')
-				continue;
-			else {
-				// reset
-				lineBreaks = 0;
-				unfolding = false;
-				
-				// the linefeed was not used to indicate folding, we need to parse the content we have up till now as a header
-				if (previousChar == '\n' && header.remainingData() > 0)
-					headers.add(MimeHeader.parseHeader(IOUtils.toString(header)));
-				header.write(singleChar);
+		}
+		// otherwise we can not read past the end of the headers
+		else {
+			char [] singleChar = new char[1];
+			CharBuffer single = IOUtils.wrap(singleChar, false);
+			while (!scanner.isFinished() && data.read(single) == 1) {
+				scanner.scan(singleChar, 0, 1);
+				single.truncate();
 			}
-			previousChar = currentChar;
 		}
-		if (header.remainingData() > 0)
-			headers.add(MimeHeader.parseHeader(IOUtils.toString(header)));
+		Header [] headers = scanner.getHeaders();
 		// if the mustFinish boolean is toggled, we need the two ending linefeeds to indicate the end of the headers
-		return mustFinish && lineBreaks < 2 ? null : headers.toArray(new Header[headers.size()]);
+		return mustFinish && !scanner.isFinished() ? null : headers;
 	}
 	
 	public static String getContentRange(Header...headers) {
@@ -439,6 +570,12 @@ public class MimeUtils {
 	public static void writeHeaders(WritableContainer<ByteBuffer> output, Header...headers) throws IOException {
 		try {
 			for (Header header : headers) {
+				// parsed headers that were not modified (and don't need folding or encoding) are written as they came in
+				if (header instanceof ByteHeader && ((ByteHeader) header).isVerbatim()) {
+					((ByteHeader) header).write(output);
+					output.write(wrap("\r\n".getBytes("ASCII"), true));
+					continue;
+				}
 				// the mime header does proper formatting
 				if (!(header instanceof MimeHeader))
 					header = new MimeHeader(header.getName(), header.getValue(), header.getComments());
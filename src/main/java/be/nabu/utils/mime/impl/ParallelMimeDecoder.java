@@ -0,0 +1,164 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.DecodedPartHandler;
+import be.nabu.utils.mime.api.MultiPart;
+import be.nabu.utils.mime.api.Part;
+import be.nabu.utils.mime.util.MemoryBudget;
+import be.nabu.utils.mime.util.SpillingByteContainer;
+
+/**
+ * Once a multipart is parsed, the decoding (chunked, transfer encoding, content encoding) of every content part is independent of the others
+ * This decodes the content parts of a multipart (including those in nested multiparts) concurrently on the executor
+ * The results are handed to the handler in part order on the calling thread
+ *
+ * At most window parts are decoded ahead of the one that is being handled, the decoded content is kept in memory as long as the budget allows and spills to disk otherwise
+ * Every part reads its own data so this works best if the data can be read at an offset (local files, mapped, positional resources)
+ */
+public class ParallelMimeDecoder {
+
+	private Executor executor;
+	private int window;
+	private MemoryBudget budget;
+
+	public ParallelMimeDecoder(Executor executor) {
+		this(executor, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelMimeDecoder(Executor executor, int window) {
+		this(executor, window, MemoryBudget.getInstance());
+	}
+	
+	public ParallelMimeDecoder(Executor executor, int window, MemoryBudget budget) {
+		if (window < 1) {
+			throw new IllegalArgumentException("The window must be at least 1");
+		}
+		this.executor = executor;
+		this.window = window;
+		this.budget = budget;
+	}
+
+	public void decode(MultiPart multiPart, DecodedPartHandler handler) throws IOException {
+		// the parts are collected first, if the multipart is parsed lazily, this parses it on the calling thread
+		List<ContentPart> parts = new ArrayList<ContentPart>();
+		collect(multiPart, parts);
+		List<FutureTask<SpillingByteContainer>> tasks = new ArrayList<FutureTask<SpillingByteContainer>>();
+		// the containers are created up front so we can always release them, even if the decoding is still running
+		List<SpillingByteContainer> containers = new ArrayList<SpillingByteContainer>();
+		try {
+			for (int i = 0; i < parts.size(); i++) {
+				// keep the window full
+				while (tasks.size() < parts.size() && tasks.size() < i + window) {
+					SpillingByteContainer container = new SpillingByteContainer(budget);
+					FutureTask<SpillingByteContainer> task = new FutureTask<SpillingByteContainer>(new Decoding(parts.get(tasks.size()), container));
+					containers.add(container);
+					tasks.add(task);
+					executor.execute(task);
+				}
+				SpillingByteContainer content = get(tasks.get(i));
+				tasks.set(i, null);
+				try {
+					handler.handle(parts.get(i), content.getReadable());
+				}
+				// release the content once it is handled
+				finally {
+					containers.set(i, null);
+					content.close();
+				}
+			}
+		}
+		finally {
+			for (FutureTask<SpillingByteContainer> task : tasks) {
+				if (task != null) {
+					task.cancel(true);
+				}
+			}
+			// a decoding that is still running fails on the closed container
+			for (SpillingByteContainer container : containers) {
+				if (container != null) {
+					container.close();
+				}
+			}
+		}
+	}
+
+	private static void collect(MultiPart multiPart, List<ContentPart> parts) {
+		for (Part child : multiPart) {
+			if (child instanceof MultiPart) {
+				collect((MultiPart) child, parts);
+			}
+			else if (child instanceof ContentPart) {
+				parts.add((ContentPart) child);
+			}
+		}
+	}
+
+	private static SpillingByteContainer get(FutureTask<SpillingByteContainer> task) throws IOException {
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the decoding of a part");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static class Decoding implements Callable<SpillingByteContainer> {
+		private ContentPart part;
+		private SpillingByteContainer container;
+
+		private Decoding(ContentPart part, SpillingByteContainer container) {
+			this.part = part;
+			this.container = container;
+		}
+
+		@Override
+		public SpillingByteContainer call() throws IOException {
+			ReadableContainer<ByteBuffer> readable = part.getReadable();
+			if (readable != null) {
+				try {
+					IOUtils.copyBytes(readable, container);
+				}
+				finally {
+					readable.close();
+				}
+			}
+			return container;
+		}
+	}
+}
@@ -18,18 +18,41 @@
 package be.nabu.utils.mime.impl;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
 import be.nabu.utils.mime.api.ModifiableContentPart;
+import be.nabu.utils.mime.util.ContentCache;
 
 public class ParsedMimeBinaryPart extends ParsedMimePart implements ModifiableContentPart {
 
 	private boolean reopenable;
 	
+	/**
+	 * The encodings the cached content was decoded with
+	 */
+	private String [] cachedEncodings;
+	
 	@Override
 	final public ReadableContainer<ByteBuffer> getReadable() throws IOException {
-		return getContent();
+		ContentCache cache = getParser() == null ? null : getParser().getContentCache();
+		if (cache == null) {
+			return getContent();
+		}
+		// if the headers were changed (replaced or in place), the cached content might no longer be valid
+		String [] encodings = getEncodings();
+		if (!Arrays.equals(encodings, cachedEncodings)) {
+			cache.remove(this);
+			cachedEncodings = encodings;
+		}
+		// only the first read has to decode the content
+		ReadableContainer<ByteBuffer> content = cache.get(this);
+		return content == null ? cache.put(this, getContent()) : content;
+	}
+	
+	private String [] getEncodings() {
+		return new String [] { MimeUtils.getTransferEncoding(getHeaders()), MimeUtils.getContentTransferEncoding(getHeaders()), MimeUtils.getContentEncoding(getHeaders()) };
 	}
 
 	@Override
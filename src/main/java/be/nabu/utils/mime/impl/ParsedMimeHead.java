@@ -0,0 +1,87 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.IOException;
+import java.util.List;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.Header;
+
+/**
+ * The result of parsing only the headers of a message, the body is left untouched so it can be forwarded as is
+ */
+public class ParsedMimeHead {
+
+	private Header [] headers;
+	private long bodyOffset;
+	private List<Header []> childHeaders;
+
+	/**
+	 * Either the data is still open and positioned at the start of the body or we can reopen the resource
+	 */
+	private ReadableContainer<ByteBuffer> body;
+	private ReadableResource resource;
+
+	ParsedMimeHead(Header [] headers, long bodyOffset, List<Header []> childHeaders, ReadableContainer<ByteBuffer> body, ReadableResource resource) {
+		this.headers = headers;
+		this.bodyOffset = bodyOffset;
+		this.childHeaders = childHeaders;
+		this.body = body;
+		this.resource = resource;
+	}
+
+	public Header [] getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * The offset of the body, this is the size of the headers including the empty line that ends them
+	 */
+	public long getBodyOffset() {
+		return bodyOffset;
+	}
+
+	/**
+	 * The headers of the direct children of a multipart (excluding the content before the first boundary), in order
+	 * This is null if they were not requested or the message is not a multipart
+	 */
+	public List<Header []> getChildHeaders() {
+		return childHeaders;
+	}
+
+	/**
+	 * The raw body (transfer encodings like chunked are not decoded)
+	 * If the message was parsed from a stream, this is the remainder of that stream and it can only be read once
+	 * If it was parsed from a resource, the resource is reopened every time
+	 */
+	public ReadableContainer<ByteBuffer> getBody() throws IOException {
+		if (resource == null) {
+			return body;
+		}
+		ReadableContainer<ByteBuffer> readable = MimeUtils.getReadable(resource, bodyOffset);
+		if (readable == null) {
+			readable = resource.getReadable();
+			readable.read(IOUtils.newByteSink(bodyOffset));
+		}
+		return readable;
+	}
+}
@@ -17,10 +17,13 @@
 
 package be.nabu.utils.mime.impl;
 
+import java.io.IOException;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import be.nabu.libs.resources.api.Resource;
 import be.nabu.utils.mime.api.MultiPart;
@@ -30,22 +33,152 @@ public class ParsedMimeMultiPart extends ParsedMimePart implements MultiPart {
 
 	private List<Part> parts = new ArrayList<Part>();
 	
+	private PartIndex partIndex = new PartIndex();
+	
+	/**
+	 * If the multipart was opened from an index, the children are only created when they are needed
+	 */
+	private MimeIndex index;
+	private int indexPosition;
+	
+	/**
+	 * If the multipart is parsed lazily, this is the parser that is still working on it
+	 */
+	private MimeByteParser lazyParser;
+	
 	void addParts(ParsedMimePart...parts) {
 		this.parts.addAll(Arrays.asList(parts));
 	}
+	
+	void setLazyParser(MimeByteParser lazyParser) {
+		this.lazyParser = lazyParser;
+	}
+	
+	/**
+	 * Whether the children are still being parsed
+	 */
+	boolean isParsing() {
+		return lazyParser != null;
+	}
+	
+	/**
+	 * The amount of children that are available without further parsing
+	 */
+	int getParsedCount() {
+		return parts.size();
+	}
+	
+	/**
+	 * Parses until there is an additional child, returns false if there are no more children
+	 */
+	private boolean advance() {
+		if (lazyParser == null) {
+			return false;
+		}
+		int count = parts.size();
+		try {
+			lazyParser.advance(this);
+		}
+		catch (ParseException e) {
+			throw new RuntimeException(e);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return parts.size() > count;
+	}
+	
+	/**
+	 * The size is only known once all the children are parsed
+	 */
+	@Override
+	long getSize() {
+		while (isParsing() && advance());
+		return super.getSize();
+	}
+	
+	void setIndex(MimeIndex index, int indexPosition) {
+		this.index = index;
+		this.indexPosition = indexPosition;
+	}
+	
+	List<Part> getParts() {
+		if (index != null) {
+			MimeIndex index = this.index;
+			this.index = null;
+			try {
+				index.openChildren(this, indexPosition);
+			}
+			catch (ParseException e) {
+				throw new RuntimeException(e);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		while (isParsing() && advance());
+		return parts;
+	}
 
 	@Override
 	public Iterator<Part> iterator() {
-		return parts.iterator();
+		if (!isParsing()) {
+			return getParts().iterator();
+		}
+		// only parse as far as the iterator is consumed
+		return new Iterator<Part>() {
+			private int position;
+			@Override
+			public boolean hasNext() {
+				while (position >= parts.size() && advance());
+				return position < parts.size();
+			}
+			@Override
+			public Part next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return parts.get(position++);
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 	@Override
 	public Part getChild(String name) {
-		for (Part part : parts) {
-			if (part.getName().equals(name))
-				return part;
+		Part child;
+		// if we are still parsing, we only parse as far as we need to
+		do {
+			child = partIndex.getByName(isParsing() ? parts : getParts(), name);
 		}
-		return null;
+		while (child == null && isParsing() && advance());
+		return child;
+	}
+	
+	/**
+	 * The content id can be a "cid:" url or the value of the Content-ID header
+	 */
+	public Part getChildByContentId(String contentId) {
+		Part child;
+		do {
+			child = partIndex.getByContentId(isParsing() ? parts : getParts(), contentId);
+		}
+		while (child == null && isParsing() && advance());
+		return child;
+	}
+	
+	/**
+	 * The headers of a child have changed
+	 */
+	void invalidateIndex() {
+		partIndex.invalidate();
+	}
+	
+	public List<Part> getChildrenByContentType(String contentType) {
+		return partIndex.getByContentType(getParts(), contentType);
 	}
 
 	@Override
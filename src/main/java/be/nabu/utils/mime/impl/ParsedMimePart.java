@@ -17,14 +17,17 @@
 
 package be.nabu.utils.mime.impl;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.util.MappedFile;
 
-abstract public class ParsedMimePart extends MimePartBase<ParsedMimeMultiPart> {
+abstract public class ParsedMimePart extends MimePartBase<ParsedMimeMultiPart> implements Closeable {
 
 	private MimeParser parser;
 	
@@ -44,6 +47,16 @@ abstract public class ParsedMimePart extends MimePartBase<ParsedMimeMultiPart> {
 	 */
 	private long size;
 	
+	/**
+	 * The memory mapping of the data, this is only set on the root
+	 */
+	private MappedFile mapping;
+	
+	/**
+	 * Whatever the parser created to hold the data (e.g. the spool of a stream), this is only set on the root
+	 */
+	private Closeable owned;
+	
 	void setOffset(long offset) {
 		this.offset = offset;
 	}
@@ -60,8 +73,39 @@ abstract public class ParsedMimePart extends MimePartBase<ParsedMimeMultiPart> {
 		return getParent() == null ? offset : getParent().getAbsoluteOffset() + offset;
 	}
 	
+	/**
+	 * The absolute end of the part, -1 if it runs until the end of the data
+	 */
+	long getAbsoluteEnd() {
+		if (getSize() > 0) {
+			return getAbsoluteOffset() + getSize();
+		}
+		return getParent() == null ? -1 : getParent().getAbsoluteEnd();
+	}
+	
+	/**
+	 * Whether the raw content of the children is a slice of the resource, this is not the case if the content is decoded first (e.g. encrypted)
+	 */
+	boolean isSliceOfResource() {
+		return getParent() == null || getParent().isSliceOfResource();
+	}
+	
 	ReadableContainer<ByteBuffer> getRawContent() throws IOException {
 		ReadableContainer<ByteBuffer> message = null;
+		// if we can, we go straight to the part instead of skipping everything before it
+		if (getParent() == null || getParent().isSliceOfResource()) {
+			long offset = getAbsoluteOffset();
+			long end = getAbsoluteEnd();
+			// the mapping is read directly, there is no need for an additional buffer
+			MappedFile mapping = getMapping();
+			if (mapping != null) {
+				return mapping.getReadable(offset, (end >= 0 ? Math.min(end, mapping.getSize()) : mapping.getSize()) - offset);
+			}
+			message = getResource() == null ? null : MimeUtils.getReadable(getResource(), offset);
+			if (message != null) {
+				return IOUtils.bufferReadable(end >= 0 ? IOUtils.limitReadable(message, end - offset) : message, IOUtils.newByteBuffer(1024*10, true));
+			}
+		}
 		if (getParent() == null) {
 			// get the data
 			message = getResource().getReadable();
@@ -87,6 +131,31 @@ abstract public class ParsedMimePart extends MimePartBase<ParsedMimeMultiPart> {
 		return bytes;
 	}
 	
+	MappedFile getMapping() {
+		return mapping != null || getParent() == null ? mapping : getParent().getMapping();
+	}
+	
+	void setMapping(MappedFile mapping) {
+		this.mapping = mapping;
+	}
+	
+	void setOwned(Closeable owned) {
+		this.owned = owned;
+	}
+	
+	/**
+	 * Releases whatever the parser created to hold the data of the message (e.g. the spool when parsing a stream), the content can no longer be read afterwards
+	 * Closing a child or a part that was parsed from a resource you passed in does nothing
+	 */
+	@Override
+	public void close() throws IOException {
+		Closeable owned = this.owned;
+		this.owned = null;
+		if (owned != null) {
+			owned.close();
+		}
+	}
+	
 	MimeParser getParser() {
 		return parser;
 	}
@@ -103,6 +172,23 @@ abstract public class ParsedMimePart extends MimePartBase<ParsedMimeMultiPart> {
 		return resource;
 	}
 	
+	@Override
+	public void setHeader(Header...headers) {
+		super.setHeader(headers);
+		// the parent might have indexed us on our headers
+		if (getParent() != null) {
+			getParent().invalidateIndex();
+		}
+	}
+	
+	@Override
+	public void removeHeader(String...names) {
+		super.removeHeader(names);
+		if (getParent() != null) {
+			getParent().invalidateIndex();
+		}
+	}
+	
 	long getBodyOffset() {
 		return bodyOffset;
 	}
@@ -45,6 +45,12 @@ public class ParsedPKCS7MimeMultiPart extends ParsedMimeMultiPart implements Par
 		}
 	}
 	
+	@Override
+	boolean isSliceOfResource() {
+		// the children are parsed from the decoded content
+		return false;
+	}
+
 	@Override
 	ReadableContainer<ByteBuffer> getContent() throws IOException {
 		return getRawContent();
@@ -0,0 +1,166 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.Part;
+
+/**
+ * Indexes the children of a multipart by name, content id and content type so they don't have to be scanned (and their headers parsed) for every lookup
+ * Children are indexed when they are first looked up, for the same key the first child wins, just like the scan did
+ * If the headers of a child are replaced, the multipart invalidates the index
+ * If a header of a child is modified in place (e.g. MimeHeader.setValue()), this is detected the same way as in the HeaderMap: by its modifications
+ * The children are only checked for this if any header was modified since the last lookup, otherwise a lookup does not have to look at the children at all
+ * 
+ * Lookups can be done by multiple threads at once (like on the parts before they were indexed), the index is synchronized
+ */
+class PartIndex {
+	
+	private int indexed;
+	private Map<String, Part> names = new HashMap<String, Part>();
+	private Map<String, Part> contentIds = new HashMap<String, Part>();
+	private Map<String, List<Part>> contentTypes = new HashMap<String, List<Part>>();
+	
+	/**
+	 * The state of the headers of each indexed part at the time it was indexed
+	 */
+	private List<Stamp> stamps = new ArrayList<Stamp>();
+	
+	/**
+	 * The modifications of all headers when the stamps were last checked
+	 */
+	private long modifications = -1;
+	
+	private static class Stamp {
+		private Part part;
+		private Header [] headers;
+		private long modifications;
+		
+		private Stamp(Part part) {
+			this.part = part;
+			this.headers = part.getHeaders();
+			this.modifications = getModifications(headers);
+		}
+		
+		private boolean isCurrent(Part part) {
+			if (part != this.part) {
+				return false;
+			}
+			Header [] headers = part.getHeaders();
+			// most parts share the same array until their headers change
+			if (headers != this.headers) {
+				if (headers.length != this.headers.length) {
+					return false;
+				}
+				for (int i = 0; i < headers.length; i++) {
+					if (headers[i] != this.headers[i]) {
+						return false;
+					}
+				}
+			}
+			return getModifications(headers) == modifications;
+		}
+		
+		private static long getModifications(Header...headers) {
+			long modifications = 0;
+			for (Header header : headers) {
+				modifications += HeaderMap.getModifications(header);
+			}
+			return modifications;
+		}
+	}
+	
+	private void update(List<Part> parts) {
+		// children were removed
+		if (parts.size() < indexed) {
+			clear();
+		}
+		// the headers of indexed children might have been changed in place
+		long modifications = MimeHeader.getAllModifications();
+		if (modifications != this.modifications) {
+			for (int i = 0; i < indexed; i++) {
+				if (!stamps.get(i).isCurrent(parts.get(i))) {
+					clear();
+					break;
+				}
+			}
+			this.modifications = modifications;
+		}
+		for (; indexed < parts.size(); indexed++) {
+			Part part = parts.get(indexed);
+			stamps.add(new Stamp(part));
+			String name = part.getName();
+			if (name != null && !names.containsKey(name)) {
+				names.put(name, part);
+			}
+			String contentId = MimeUtils.getContentId(part.getHeaders());
+			if (contentId != null && !contentIds.containsKey(contentId)) {
+				contentIds.put(contentId, part);
+			}
+			String contentType = MimeUtils.getContentType(part.getHeaders()).toLowerCase();
+			List<Part> list = contentTypes.get(contentType);
+			if (list == null) {
+				list = new ArrayList<Part>();
+				contentTypes.put(contentType, list);
+			}
+			list.add(part);
+		}
+	}
+	
+	synchronized void invalidate() {
+		clear();
+	}
+	
+	private void clear() {
+		indexed = 0;
+		stamps.clear();
+		names.clear();
+		contentIds.clear();
+		contentTypes.clear();
+	}
+	
+	synchronized Part getByName(List<Part> parts, String name) {
+		update(parts);
+		return names.get(name);
+	}
+	
+	/**
+	 * The content id can be a "cid:" url (as used in multipart/related) or the value of the header with or without the angle brackets
+	 */
+	synchronized Part getByContentId(List<Part> parts, String contentId) {
+		contentId = MimeUtils.normalizeContentId(contentId);
+		update(parts);
+		return contentIds.get(contentId);
+	}
+	
+	/**
+	 * Any parameters of the content type are ignored
+	 */
+	synchronized List<Part> getByContentType(List<Part> parts, String contentType) {
+		update(parts);
+		List<Part> list = contentTypes.get(MediaType.parse(contentType).getBaseType().toLowerCase());
+		// the list itself can change when more children are indexed
+		return list == null ? Collections.<Part>emptyList() : Collections.unmodifiableList(new ArrayList<Part>(list));
+	}
+}
@@ -30,6 +30,8 @@ public class PlainMimeMultiPart extends PlainMimePart implements MultiPart {
 
 	private List<Part> children = new ArrayList<Part>();
 	
+	private PartIndex partIndex = new PartIndex();
+	
 	public PlainMimeMultiPart(MultiPart parent, Header...headers) {
 		super(parent, headers);
 	}
@@ -40,11 +42,25 @@ public class PlainMimeMultiPart extends PlainMimePart implements MultiPart {
 
 	@Override
 	public Part getChild(String name) {
-		for (Part child : children) {
-			if (child.getName().equals(name))
-				return child;
-		}
-		return null;
+		return partIndex.getByName(children, name);
+	}
+	
+	/**
+	 * The content id can be a "cid:" url or the value of the Content-ID header
+	 */
+	public Part getChildByContentId(String contentId) {
+		return partIndex.getByContentId(children, contentId);
+	}
+	
+	/**
+	 * The headers of a child have changed
+	 */
+	void invalidateIndex() {
+		partIndex.invalidate();
+	}
+	
+	public List<Part> getChildrenByContentType(String contentType) {
+		return partIndex.getByContentType(children, contentType);
 	}
 
 	@Override
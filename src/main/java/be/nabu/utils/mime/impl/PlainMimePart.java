@@ -17,11 +17,6 @@
 
 package be.nabu.utils.mime.impl;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.List;
-
 import be.nabu.libs.resources.api.ResourceContainer;
 import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.api.ModifiablePart;
@@ -30,7 +25,7 @@ import be.nabu.utils.mime.api.MultiPart;
 abstract public class PlainMimePart implements ModifiablePart {
 	
 	private MultiPart parent;
-	private List<Header> headers = new ArrayList<Header>();
+	private HeaderMap headers = new HeaderMap();
 
 	public PlainMimePart(MultiPart parent, Header...headers) {
 		this.parent = parent;
@@ -39,26 +34,31 @@ abstract public class PlainMimePart implements ModifiablePart {
 	
 	@Override
 	public Header[] getHeaders() {
-		return headers.toArray(new Header[headers.size()]);
+		return headers.getHeaders();
+	}
+	
+	HeaderMap getHeaderMap() {
+		return headers;
 	}
 	
 	@Override
 	public void setHeader(Header...headers) {
-		this.headers.addAll(Arrays.asList(headers));
+		this.headers.add(headers);
+		invalidateIndex();
+	}
+	
+	// the parent might have indexed us on our headers
+	private void invalidateIndex() {
+		if (parent instanceof PlainMimeMultiPart) {
+			((PlainMimeMultiPart) parent).invalidateIndex();
+		}
 	}
 	
 	@Override
 	public void removeHeader(String...names) {
 		if (names.length > 0) {
-			List<String> list = new ArrayList<String>();
-			for (String name : names)
-				list.add(name.toLowerCase());
-			Iterator<Header> iterator = headers.iterator();
-			while (iterator.hasNext()) {
-				Header next = iterator.next();
-				if (list.contains(next.getName().toLowerCase()))
-					iterator.remove();
-			}
+			headers.remove(names);
+			invalidateIndex();
 		}
 	}
 	
@@ -69,7 +69,7 @@ abstract public class PlainMimePart implements ModifiablePart {
 	
 	@Override
 	public String getContentType() {
-		return MimeUtils.getContentType(getHeaders());
+		return headers.getContentType();
 	}
 
 	@Override
@@ -36,6 +36,8 @@ import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.api.MultiPart;
 import be.nabu.utils.mime.api.Part;
 import be.nabu.utils.mime.util.ChunkedEncodingReadableByteContainer;
+import be.nabu.utils.mime.util.MemoryBudget;
+import be.nabu.utils.mime.util.SpillingByteContainer;
 
 public class PullableMimeFormatter extends MimeFormatter implements ReadableContainer<ByteBuffer> {
 
@@ -52,6 +54,14 @@ public class PullableMimeFormatter extends MimeFormatter implements ReadableCont
 	private Stack<String> boundaries = new Stack<String>();
 	
 	private DynamicByteBuffer buffer = new DynamicByteBuffer();
+	
+	/**
+	 * Formattable parts (e.g. signed or encrypted) are formatted entirely before they are streamed, this can spill to disk if the memory budget runs out
+	 */
+	private SpillingByteContainer formatted;
+	private ReadableContainer<ByteBuffer> formattedReadable;
+	
+	private MemoryBudget budget;
 	private boolean isClosed = true;
 	private boolean footerWritten = false;
 	
@@ -72,17 +82,30 @@ public class PullableMimeFormatter extends MimeFormatter implements ReadableCont
 		}
 	}
 
-	private void reset() {
+	private void reset() throws IOException {
 		isClosed = false;
 		buffer.truncate();
 		footerWritten = false;
+		closeFormatted();
+	}
+	
+	private void closeFormatted() throws IOException {
+		if (formatted != null) {
+			formatted.close();
+			formatted = null;
+			formattedReadable = null;
+		}
 	}
 	
 	private void push(Part part, boolean root) throws IOException, FormatException {
 		// formatted parts can not be streamed at this point
 		if (part instanceof FormattablePart) {
 			((FormattablePart) part).setFormatter(new MimeFormatter());
-			((FormattablePart) part).format(buffer);
+			formatted = new SpillingByteContainer(getBudget());
+			// anything that is still in the buffer (e.g. a boundary) has to go first
+			formatted.write(buffer);
+			((FormattablePart) part).format(formatted);
+			formattedReadable = formatted.getReadable();
 			// if it is not part of a multipart, it will handle the footer
 			if (partIterators.isEmpty()) {
 				footerWritten = true;
@@ -138,10 +161,15 @@ public class PullableMimeFormatter extends MimeFormatter implements ReadableCont
 
 	@Override
 	public void close() throws IOException {
-		if (currentReadable != null) {
-			currentReadable.close();
+		try {
+			if (currentReadable != null) {
+				currentReadable.close();
+			}
+		}
+		finally {
+			closeFormatted();
+			isClosed = true;
 		}
-		isClosed = true;
 	}
 
 	@Override
@@ -155,8 +183,21 @@ public class PullableMimeFormatter extends MimeFormatter implements ReadableCont
 			}
 			// if no data remains in the buffer, we need to check if we were copying a readable
 			else {
+				// a formatted part goes as is
+				if (formattedReadable != null) {
+					long read = formattedReadable.read(target);
+					if (read == -1) {
+						closeFormatted();
+					}
+					else if (read == 0) {
+						break;
+					}
+					else {
+						totalRead += read;
+					}
+				}
 				// if there is a readable, use it
-				if (currentReadable != null) {
+				else if (currentReadable != null) {
 					// @2023-11-30: push everything to the buffer first so we can wrap it in chunked encoding if necessary (only relevant for multiparts!)
 					ByteBuffer limitedBuffer = new LimitedByteBuffer(buffer, null, remainingSpace);
 					long read = currentReadable.read(limitedBuffer);
@@ -214,9 +255,10 @@ public class PullableMimeFormatter extends MimeFormatter implements ReadableCont
 
 	protected ReadableContainer<ByteBuffer> encodeInput(Part part, ReadableContainer<ByteBuffer> input) {
 		// this assumes the formateContentPartHeaders has been called which will have checked or set the encoding (or thrown an exception)
-		String contentTransferEncoding = MimeUtils.getContentTransferEncoding(part.getHeaders());
-		String transferEncoding = MimeUtils.getTransferEncoding(part.getHeaders());
-		String contentEncoding = MimeUtils.getContentEncoding(part.getHeaders());
+		HeaderMap headers = MimeUtils.getHeaderMap(part);
+		String contentTransferEncoding = headers.getContentTransferEncoding();
+		String transferEncoding = headers.getTransferEncoding();
+		String contentEncoding = headers.getContentEncoding();
 
 		if (!allowBinary && contentTransferEncoding == null && !(part instanceof MultiPart)) {
 			contentTransferEncoding = getContentTransferEncoding(part);
@@ -234,6 +276,14 @@ public class PullableMimeFormatter extends MimeFormatter implements ReadableCont
 		return input;
 	}
 
+	public MemoryBudget getBudget() {
+		return budget == null ? MemoryBudget.getInstance() : budget;
+	}
+
+	public void setBudget(MemoryBudget budget) {
+		this.budget = budget;
+	}
+
 	public boolean isDone() {
 		return isClosed;
 	}
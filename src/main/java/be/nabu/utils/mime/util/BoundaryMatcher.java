@@ -0,0 +1,186 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.util.Arrays;
+
+/**
+ * Matches all the active boundaries of a nested multipart in a single pass
+ * Every delimiter starts with "--" so we look for that first, only at those candidates do we walk a trie of the boundaries
+ * The boundaries are kept as a stack: level 1 is the outermost multipart, the highest level is the innermost one
+ * If multiple boundaries match at the same position, the outermost one wins
+ */
+public class BoundaryMatcher {
+
+	private static final byte DASH = '-';
+
+	private byte [][] boundaries = new byte[8][];
+	private int depth;
+
+	private Node root = new Node();
+
+	private int matchLevel;
+
+	/**
+	 * Adds the boundary (without the leading "--") of a new innermost level, it returns the level
+	 */
+	public int push(byte [] boundary) {
+		depth++;
+		if (depth == boundaries.length) {
+			boundaries = Arrays.copyOf(boundaries, depth * 2);
+		}
+		boundaries[depth] = boundary;
+		add(boundary, depth);
+		return depth;
+	}
+
+	/**
+	 * Removes the innermost boundary
+	 */
+	public void pop() {
+		if (depth == 0) {
+			throw new IllegalStateException("There are no boundaries left");
+		}
+		boundaries[depth--] = null;
+		// the stack is rarely deep, it is cheaper to rebuild the trie than to keep counts on the nodes
+		root = new Node();
+		for (int i = 1; i <= depth; i++) {
+			add(boundaries[i], i);
+		}
+	}
+
+	private void add(byte [] boundary, int level) {
+		Node node = root;
+		for (byte value : boundary) {
+			node = node.getOrCreate(value);
+		}
+		if (node.level == 0 || level < node.level) {
+			node.level = level;
+		}
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * The length of the full delimiter ("--" + boundary) at the given level
+	 */
+	public int getDelimiterLength(int level) {
+		return boundaries[level].length + 2;
+	}
+
+	/**
+	 * Scans the data for the first delimiter, there are three possible outcomes:
+	 * - a delimiter is found: its index is returned and getMatchLevel() is the level it belongs to
+	 * - we don't have enough data to decide whether there is a delimiter at some position: that position is returned and the match level is 0
+	 * - there is no delimiter: the limit is returned and the match level is 0
+	 * Once the data is finished (eof), there is no undecided position
+	 */
+	public int scan(byte [] data, int offset, int limit, boolean eof) {
+		matchLevel = 0;
+		if (depth == 0) {
+			return limit;
+		}
+		int i = offset;
+		int last = limit - 1;
+		while (i < last) {
+			// if the next byte is not a dash, neither this nor the next can start a delimiter
+			if (data[i + 1] != DASH) {
+				i += 2;
+			}
+			else if (data[i] != DASH) {
+				i++;
+			}
+			else {
+				int level = match(data, i + 2, limit, eof);
+				if (level != 0) {
+					// -1 means undecided
+					matchLevel = Math.max(0, level);
+					return i;
+				}
+				i++;
+			}
+		}
+		// a single trailing dash might be the start of a delimiter
+		if (i == last && !eof && data[i] == DASH) {
+			return i;
+		}
+		return limit;
+	}
+
+	/**
+	 * Walks the trie, returns the outermost matching level, 0 if nothing matches and -1 if we need more data
+	 */
+	private int match(byte [] data, int offset, int limit, boolean eof) {
+		Node node = root;
+		int level = 0;
+		for (int i = offset; node.keys.length > 0; i++) {
+			if (i == limit) {
+				if (!eof) {
+					return -1;
+				}
+				break;
+			}
+			node = node.get(data[i]);
+			if (node == null) {
+				break;
+			}
+			if (node.level != 0 && (level == 0 || node.level < level)) {
+				level = node.level;
+				// nothing can beat the outermost level
+				if (level == 1) {
+					break;
+				}
+			}
+		}
+		return level;
+	}
+
+	public int getMatchLevel() {
+		return matchLevel;
+	}
+
+	private static class Node {
+		private byte [] keys = new byte[0];
+		private Node [] children = new Node[0];
+		// the outermost level of the boundary that ends in this node, 0 if none does
+		private int level;
+
+		private Node get(byte value) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == value) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		private Node getOrCreate(byte value) {
+			Node node = get(value);
+			if (node == null) {
+				node = new Node();
+				keys = Arrays.copyOf(keys, keys.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				keys[keys.length - 1] = value;
+				children[children.length - 1] = node;
+			}
+			return node;
+		}
+	}
+}
@@ -0,0 +1,521 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Caches content (e.g. the decoded content of a part) so it can be read again without redoing the work
+ * The content is kept in memory up to the memory size (as long as it can be reserved from the budget), the least recently used content is moved to disk (if there is a disk size) or forgotten
+ * Content that does not fit at all is simply passed through without being cached
+ *
+ * The keys are compared on equality, parts are only equal to themselves
+ * The keys are weakly referenced: once a key is no longer used (e.g. the message it belongs to is gone), its content is dropped
+ * The files on disk are deleted once they are dropped and no longer read
+ */
+public class ContentCache {
+
+	private static final int BLOCK_SIZE = 8192;
+	
+	/**
+	 * Content that is larger than the largest array we can allocate goes to disk
+	 */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	
+	private long maxMemory, maxDisk;
+	private long usedMemory, usedDisk;
+	private MemoryBudget budget;
+
+	private Map<Key, Entry> memory = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private Map<Key, Entry> disk = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	
+	/**
+	 * The content that is being moved from memory to disk, it can still be read from memory
+	 */
+	private Map<Key, Entry> spilling = new LinkedHashMap<Key, Entry>();
+	
+	private ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+	private static class Key extends WeakReference<Object> {
+		private int hash;
+		
+		private Key(Object key, ReferenceQueue<Object> queue) {
+			super(key, queue);
+			this.hash = key.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			// a key that was collected is only equal to itself
+			Object key = get();
+			return key != null && obj instanceof Key && key.equals(((Key) obj).get());
+		}
+	}
+	
+	private static class Entry {
+		private byte [] content;
+		// the memory that was reserved from the budget for the content
+		private long reserved;
+		private FileChannel channel;
+		private long size;
+		// the amount of readers that have the channel open
+		private int readers;
+		private boolean dropped;
+	}
+
+	public ContentCache(long maxMemory) {
+		this(maxMemory, 0);
+	}
+
+	public ContentCache(long maxMemory, long maxDisk) {
+		this(maxMemory, maxDisk, MemoryBudget.getInstance());
+	}
+	
+	public ContentCache(long maxMemory, long maxDisk, MemoryBudget budget) {
+		this.maxMemory = maxMemory;
+		this.maxDisk = maxDisk;
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns the cached content or null if there is none
+	 */
+	public ReadableContainer<ByteBuffer> get(Object key) throws IOException {
+		List<FileChannel> closing = new ArrayList<FileChannel>();
+		try {
+			synchronized(this) {
+				expunge(closing);
+				Key lookup = new Key(key, null);
+				Entry entry = memory.get(lookup);
+				if (entry == null) {
+					entry = disk.get(lookup);
+				}
+				if (entry == null) {
+					entry = spilling.get(lookup);
+				}
+				return entry == null ? null : getReadable(entry);
+			}
+		}
+		finally {
+			close(closing);
+		}
+	}
+
+	/**
+	 * Reads the content and caches it (if it fits), the returned container has the same content
+	 * The content is closed once it is read
+	 */
+	public ReadableContainer<ByteBuffer> put(Object key, ReadableContainer<ByteBuffer> content) throws IOException {
+		Entry entry = new Entry();
+		byte [] bytes = new byte[0];
+		java.nio.ByteBuffer block = null;
+		try {
+			while (true) {
+				// the memory is full, continue on disk if we can
+				if (entry.channel == null && entry.size == bytes.length) {
+					int length = (int) Math.min(Math.min(maxMemory, MAX_ARRAY_SIZE), Math.max(BLOCK_SIZE, bytes.length * 2L));
+					if (length > bytes.length && budget.tryReserve(length - bytes.length)) {
+						bytes = Arrays.copyOf(bytes, length);
+						entry.reserved = length;
+					}
+					else if (entry.size < maxDisk) {
+						entry.channel = createChannel();
+						writeFully(entry.channel, java.nio.ByteBuffer.wrap(bytes, 0, (int) entry.size));
+						budget.release(entry.reserved);
+						entry.reserved = 0;
+						bytes = null;
+						block = java.nio.ByteBuffer.allocate(BLOCK_SIZE);
+					}
+					// it fits nowhere, what we have read is passed on along with the rest
+					else {
+						budget.release(entry.reserved);
+						return concat(IOUtils.wrap(bytes, 0, (int) entry.size, true), content);
+					}
+				}
+				// the disk is full as well, what we have spilled is passed on along with the rest
+				if (entry.channel != null && entry.size >= maxDisk) {
+					entry.dropped = true;
+					ReadableContainer<ByteBuffer> spilled;
+					synchronized(this) {
+						spilled = getReadable(entry);
+					}
+					return concat(spilled, content);
+				}
+				long read;
+				if (entry.channel == null) {
+					read = content.read(IOUtils.wrap(bytes, (int) entry.size, bytes.length - (int) entry.size, false));
+				}
+				else {
+					block.clear();
+					read = content.read(IOUtils.wrap(block.array(), 0, (int) Math.min(block.capacity(), maxDisk - entry.size), false));
+					if (read > 0) {
+						block.limit((int) read);
+						writeFully(entry.channel, block);
+					}
+				}
+				if (read <= 0) {
+					break;
+				}
+				entry.size += read;
+			}
+		}
+		catch (IOException e) {
+			budget.release(entry.reserved);
+			try {
+				content.close();
+			}
+			catch (IOException f) {
+				// the original exception is more interesting
+			}
+			if (entry.channel != null) {
+				entry.channel.close();
+			}
+			throw e;
+		}
+		content.close();
+		if (entry.channel == null) {
+			entry.content = bytes.length == entry.size ? bytes : Arrays.copyOf(bytes, (int) entry.size);
+			budget.release(entry.reserved - entry.size);
+			entry.reserved = entry.size;
+		}
+		List<FileChannel> closing = new ArrayList<FileChannel>();
+		Map<Key, Entry> spills;
+		ReadableContainer<ByteBuffer> readable;
+		synchronized(this) {
+			expunge(closing);
+			drop(new Key(key, null), closing);
+			if (entry.channel == null) {
+				memory.put(new Key(key, collected), entry);
+				usedMemory += entry.size;
+			}
+			else {
+				disk.put(new Key(key, collected), entry);
+				usedDisk += entry.size;
+			}
+			readable = getReadable(entry);
+			spills = evict(closing);
+		}
+		try {
+			spill(spills, closing);
+		}
+		finally {
+			close(closing);
+		}
+		return readable;
+	}
+
+	private static FileChannel createChannel() throws IOException {
+		File file = File.createTempFile("cache", ".tmp");
+		try {
+			return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		}
+		catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, java.nio.ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Takes the least recently used content out of memory and drops it from disk until both are within their size
+	 * The content that has to move to disk is returned, the actual writing is done outside of the lock
+	 */
+	private Map<Key, Entry> evict(List<FileChannel> closing) {
+		Map<Key, Entry> spills = new LinkedHashMap<Key, Entry>();
+		Iterator<Map.Entry<Key, Entry>> iterator = memory.entrySet().iterator();
+		while (usedMemory > maxMemory && iterator.hasNext()) {
+			Map.Entry<Key, Entry> next = iterator.next();
+			Entry entry = next.getValue();
+			iterator.remove();
+			usedMemory -= entry.size;
+			if (entry.size <= maxDisk) {
+				spilling.put(next.getKey(), entry);
+				spills.put(next.getKey(), entry);
+			}
+			else {
+				drop(entry, closing);
+			}
+		}
+		iterator = disk.entrySet().iterator();
+		while (usedDisk > maxDisk && iterator.hasNext()) {
+			Entry entry = iterator.next().getValue();
+			iterator.remove();
+			usedDisk -= entry.size;
+			drop(entry, closing);
+		}
+		return spills;
+	}
+	
+	/**
+	 * Writes the content to disk, if it was removed in the meantime it is dropped instead
+	 */
+	private void spill(Map<Key, Entry> spills, List<FileChannel> closing) throws IOException {
+		IOException exception = null;
+		while (!spills.isEmpty()) {
+			Map<Key, Entry> next = new LinkedHashMap<Key, Entry>();
+			for (Map.Entry<Key, Entry> spill : spills.entrySet()) {
+				Entry entry = spill.getValue();
+				byte [] content;
+				synchronized(this) {
+					content = entry.content;
+				}
+				// it was dropped in the meantime
+				if (content == null) {
+					continue;
+				}
+				FileChannel channel = null;
+				try {
+					channel = createChannel();
+					writeFully(channel, java.nio.ByteBuffer.wrap(content, 0, (int) entry.size));
+				}
+				catch (IOException e) {
+					if (channel != null) {
+						closing.add(channel);
+						channel = null;
+					}
+					exception = e;
+				}
+				synchronized(this) {
+					if (spilling.get(spill.getKey()) == entry) {
+						spilling.remove(spill.getKey());
+						if (channel != null && spill.getKey().get() != null) {
+							budget.release(entry.reserved);
+							entry.reserved = 0;
+							entry.content = null;
+							entry.channel = channel;
+							disk.put(spill.getKey(), entry);
+							usedDisk += entry.size;
+							next.putAll(evict(closing));
+							continue;
+						}
+						drop(entry, closing);
+					}
+					if (channel != null) {
+						closing.add(channel);
+					}
+				}
+			}
+			spills = next;
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+	
+	/**
+	 * Drops the content of keys that were collected
+	 */
+	private void expunge(List<FileChannel> closing) {
+		Object key;
+		while ((key = collected.poll()) != null) {
+			drop((Key) key, closing);
+		}
+	}
+	
+	private void drop(Key key, List<FileChannel> closing) {
+		Entry entry = memory.remove(key);
+		if (entry != null) {
+			usedMemory -= entry.size;
+			drop(entry, closing);
+		}
+		entry = disk.remove(key);
+		if (entry != null) {
+			usedDisk -= entry.size;
+			drop(entry, closing);
+		}
+		entry = spilling.remove(key);
+		if (entry != null) {
+			drop(entry, closing);
+		}
+	}
+	
+	private void drop(Entry entry, List<FileChannel> closing) {
+		entry.dropped = true;
+		budget.release(entry.reserved);
+		entry.reserved = 0;
+		entry.content = null;
+		// readers that already have the file open can continue, the last one closes it
+		if (entry.channel != null && entry.readers == 0) {
+			closing.add(entry.channel);
+		}
+	}
+	
+	private static void close(List<FileChannel> channels) throws IOException {
+		IOException exception = null;
+		for (FileChannel channel : channels) {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				exception = e;
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock
+	 */
+	private ReadableContainer<ByteBuffer> getReadable(final Entry entry) {
+		if (entry.content != null) {
+			return IOUtils.wrap(entry.content, 0, (int) entry.size, true);
+		}
+		entry.readers++;
+		return new ReadableContainer<ByteBuffer>() {
+			private long position;
+			private boolean closed;
+			private byte [] chunk = new byte[BLOCK_SIZE];
+			@Override
+			public long read(ByteBuffer target) throws IOException {
+				long total = 0;
+				while (target.remainingSpace() > 0 && position < entry.size) {
+					int read = entry.channel.read(java.nio.ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, Math.min(target.remainingSpace(), entry.size - position))), position);
+					if (read < 0) {
+						break;
+					}
+					target.write(chunk, 0, read);
+					position += read;
+					total += read;
+				}
+				return total == 0 && position >= entry.size ? -1 : total;
+			}
+			@Override
+			public void close() throws IOException {
+				FileChannel channel = null;
+				synchronized(ContentCache.this) {
+					if (!closed) {
+						closed = true;
+						entry.readers--;
+						if (entry.dropped && entry.readers == 0) {
+							channel = entry.channel;
+						}
+					}
+				}
+				if (channel != null) {
+					channel.close();
+				}
+			}
+		};
+	}
+
+	private static ReadableContainer<ByteBuffer> concat(final ReadableContainer<ByteBuffer> first, final ReadableContainer<ByteBuffer> second) {
+		return new ReadableContainer<ByteBuffer>() {
+			private boolean firstDone;
+			@Override
+			public long read(ByteBuffer target) throws IOException {
+				if (!firstDone) {
+					long read = first.read(target);
+					if (read > 0 || target.remainingSpace() == 0) {
+						return read;
+					}
+					firstDone = true;
+					first.close();
+				}
+				return second.read(target);
+			}
+			@Override
+			public void close() throws IOException {
+				try {
+					first.close();
+				}
+				finally {
+					second.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Removes the cached content (if any)
+	 */
+	public void remove(Object key) throws IOException {
+		List<FileChannel> closing = new ArrayList<FileChannel>();
+		synchronized(this) {
+			drop(new Key(key, null), closing);
+		}
+		close(closing);
+	}
+
+	/**
+	 * Removes all the cached content
+	 */
+	public void clear() throws IOException {
+		List<FileChannel> closing = new ArrayList<FileChannel>();
+		synchronized(this) {
+			for (Map<Key, Entry> map : Arrays.asList(memory, disk, spilling)) {
+				for (Entry entry : map.values()) {
+					drop(entry, closing);
+				}
+				map.clear();
+			}
+			usedMemory = 0;
+			usedDisk = 0;
+		}
+		close(closing);
+	}
+
+	public synchronized long getUsedMemory() {
+		return usedMemory;
+	}
+
+	public synchronized long getUsedDisk() {
+		return usedDisk;
+	}
+
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	public long getMaxDisk() {
+		return maxDisk;
+	}
+	
+	public MemoryBudget getBudget() {
+		return budget;
+	}
+}
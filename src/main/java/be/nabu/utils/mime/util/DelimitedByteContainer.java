@@ -0,0 +1,129 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.IOException;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * The byte equivalent of the delimited char container: it reads until the delimiter is found and consumes the delimiter itself
+ * It reads the parent one byte at a time so it never consumes anything beyond the delimiter
+ * If you have direct access to the bytes, scanning them in bulk is a lot faster, this is meant for decoded streams (e.g. chunked) where that is not an option
+ */
+public class DelimitedByteContainer implements ReadableContainer<ByteBuffer> {
+
+	private ReadableContainer<ByteBuffer> parent;
+	private byte [] delimiter;
+
+	/**
+	 * The classic KMP fallback table so we don't need to reread anything on a partial match
+	 */
+	private int [] fallback;
+
+	/**
+	 * The amount of delimiter bytes matched so far
+	 */
+	private int matched;
+
+	/**
+	 * Bytes that turned out not to be part of the delimiter but could not be written to the target yet
+	 */
+	private byte [] released;
+	private int releasedOffset, releasedLength;
+
+	private byte [] single = new byte[1];
+
+	private boolean delimiterFound, parentDone;
+
+	public DelimitedByteContainer(ReadableContainer<ByteBuffer> parent, byte [] delimiter) {
+		this.parent = parent;
+		this.delimiter = delimiter;
+		this.released = new byte[delimiter.length];
+		this.fallback = new int[delimiter.length];
+		for (int i = 1, j = 0; i < delimiter.length; i++) {
+			while (j > 0 && delimiter[i] != delimiter[j]) {
+				j = fallback[j - 1];
+			}
+			if (delimiter[i] == delimiter[j]) {
+				j++;
+			}
+			fallback[i] = j;
+		}
+	}
+
+	@Override
+	public long read(ByteBuffer target) throws IOException {
+		long totalRead = 0;
+		while (target.remainingSpace() > 0) {
+			if (releasedLength > 0) {
+				int written = target.write(released, releasedOffset, releasedLength);
+				releasedOffset += written;
+				releasedLength -= written;
+				totalRead += written;
+				continue;
+			}
+			if (delimiterFound || parentDone) {
+				break;
+			}
+			long read = parent.read(IOUtils.wrap(single, false));
+			if (read < 0) {
+				parentDone = true;
+				// whatever partial match we have is simply content
+				System.arraycopy(delimiter, 0, released, 0, matched);
+				releasedOffset = 0;
+				releasedLength = matched;
+				matched = 0;
+				continue;
+			}
+			else if (read == 0) {
+				break;
+			}
+			byte current = single[0];
+			releasedOffset = 0;
+			while (matched > 0 && current != delimiter[matched]) {
+				int next = fallback[matched - 1];
+				// the bytes we can no longer match are content
+				System.arraycopy(delimiter, 0, released, releasedLength, matched - next);
+				releasedLength += matched - next;
+				matched = next;
+			}
+			if (current == delimiter[matched]) {
+				matched++;
+				if (matched == delimiter.length) {
+					delimiterFound = true;
+				}
+			}
+			else {
+				released[releasedLength++] = current;
+			}
+		}
+		return totalRead == 0 && releasedLength == 0 && (delimiterFound || parentDone) ? -1 : totalRead;
+	}
+
+	public boolean isDelimiterFound() {
+		return delimiterFound;
+	}
+
+	@Override
+	public void close() throws IOException {
+		parent.close();
+	}
+}
@@ -0,0 +1,117 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.IOException;
+
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Reads a range of a mapped file
+ * If you have access to an array you can read into it directly, otherwise there is the remaining() method which gives you the mapped memory itself
+ */
+public class MappedByteContainer implements ReadableContainer<ByteBuffer> {
+
+	private MappedFile file;
+	private long position, end;
+
+	/**
+	 * The window we are currently reading from
+	 */
+	private java.nio.ByteBuffer window;
+	private int windowIndex = -1;
+
+	/**
+	 * Used to copy to targets that don't expose an array
+	 */
+	private byte [] chunk;
+
+	MappedByteContainer(MappedFile file, long position, long end) {
+		this.file = file;
+		this.position = position;
+		this.end = end;
+	}
+
+	/**
+	 * Reads directly into the array, returns -1 if the range is done
+	 */
+	public int read(byte [] target, int offset, int length) {
+		if (position >= end) {
+			return -1;
+		}
+		int total = 0;
+		while (length > 0 && position < end) {
+			int index = (int) (position / file.getWindowSize());
+			if (index != windowIndex) {
+				window = file.getWindow(index);
+				windowIndex = index;
+			}
+			int windowOffset = (int) (position % file.getWindowSize());
+			int amount = (int) Math.min(Math.min(length, window.capacity() - windowOffset), end - position);
+			window.position(windowOffset);
+			window.get(target, offset, amount);
+			offset += amount;
+			length -= amount;
+			position += amount;
+			total += amount;
+		}
+		return total;
+	}
+
+	@Override
+	public long read(ByteBuffer target) throws IOException {
+		if (position >= end) {
+			return -1;
+		}
+		if (chunk == null) {
+			chunk = new byte[8192];
+		}
+		long total = 0;
+		while (target.remainingSpace() > 0 && position < end) {
+			int read = read(chunk, 0, (int) Math.min(chunk.length, target.remainingSpace()));
+			target.write(chunk, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the remaining data as read-only views on the mapping (one per window it spans) without copying anything, this consumes the data
+	 */
+	public java.nio.ByteBuffer [] remaining() {
+		int first = (int) (position / file.getWindowSize());
+		int last = end == position ? first - 1 : (int) ((end - 1) / file.getWindowSize());
+		java.nio.ByteBuffer [] buffers = new java.nio.ByteBuffer[last - first + 1];
+		for (int i = 0; i < buffers.length; i++) {
+			java.nio.ByteBuffer buffer = file.getWindow(first + i).asReadOnlyBuffer();
+			long windowStart = (long) (first + i) * file.getWindowSize();
+			buffer.limit((int) (Math.min(end, windowStart + buffer.capacity()) - windowStart));
+			buffer.position((int) (Math.max(position, windowStart) - windowStart));
+			buffers[i] = buffer;
+		}
+		position = end;
+		return buffers;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the mapping is shared, it is released by the garbage collector
+		position = end;
+	}
+}
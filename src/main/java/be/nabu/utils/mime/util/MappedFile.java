@@ -0,0 +1,83 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only memory mapping of an entire file
+ * A single mapping can not exceed 2GB so larger files are mapped in multiple windows, reads that cross windows are stitched together
+ * The mapping stays valid after the file channel is closed and is released when it is garbage collected
+ */
+public class MappedFile {
+
+	private static final int DEFAULT_WINDOW_SIZE = 1024 * 1024 * 1024;
+
+	private MappedByteBuffer [] windows;
+	private int windowSize;
+	private long size;
+
+	public MappedFile(File file) throws IOException {
+		this(file, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedFile(File file, int windowSize) throws IOException {
+		this.windowSize = windowSize;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			size = channel.size();
+			windows = new MappedByteBuffer[(int) ((size + windowSize - 1) / windowSize)];
+			for (int i = 0; i < windows.length; i++) {
+				long start = (long) i * windowSize;
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+			}
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns a container that reads the given range straight from the mapping
+	 */
+	public MappedByteContainer getReadable(long offset, long length) {
+		if (offset < 0 || length < 0 || offset + length > size) {
+			throw new IllegalArgumentException("The range " + offset + " + " + length + " is not within the file of size " + size);
+		}
+		return new MappedByteContainer(this, offset, offset + length);
+	}
+
+	int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Every reader gets its own view on the window so they don't share a position
+	 */
+	java.nio.ByteBuffer getWindow(int index) {
+		return windows[index].duplicate();
+	}
+}
@@ -0,0 +1,122 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Keeps track of the memory that is used by the buffers of the parsers and formatters that share it
+ * The buffers that can spill to disk (spooling, formatted parts, signatures) wait a little for memory to become available (back-pressure) before they spill
+ *
+ * There is one shared instance for the entire jvm, its capacity can be set with the system property "be.nabu.utils.mime.memoryBudget" (in bytes)
+ * By default there is no limit, the time a buffer waits before it spills can be set with "be.nabu.utils.mime.memoryBudgetWait" (in ms)
+ */
+public class MemoryBudget {
+
+	private static MemoryBudget instance = new MemoryBudget(Long.getLong("be.nabu.utils.mime.memoryBudget", Long.MAX_VALUE));
+
+	public static MemoryBudget getInstance() {
+		return instance;
+	}
+
+	public static void setInstance(MemoryBudget instance) {
+		MemoryBudget.instance = instance;
+	}
+
+	private long capacity, used;
+	
+	/**
+	 * How long the buffers that can spill wait for memory
+	 */
+	private long wait = Long.getLong("be.nabu.utils.mime.memoryBudgetWait", 100);
+
+	public MemoryBudget(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reserves the memory if it is available, returns false otherwise
+	 */
+	public synchronized boolean tryReserve(long amount) {
+		if (amount > capacity - used) {
+			return false;
+		}
+		used += amount;
+		return true;
+	}
+
+	/**
+	 * Waits until the memory is available for at most the timeout (in ms), returns false if it did not become available in time
+	 */
+	public synchronized boolean tryReserve(long amount, long timeout) throws InterruptedIOException {
+		if (amount > capacity) {
+			return false;
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		while (amount > capacity - used) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			try {
+				wait(remaining);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for memory");
+			}
+		}
+		used += amount;
+		return true;
+	}
+	
+	/**
+	 * Waits until the memory is available, an exception is thrown if it does not become available within the timeout (in ms)
+	 */
+	public void reserve(long amount, long timeout) throws IOException {
+		if (!tryReserve(amount, timeout)) {
+			throw new IOException("Could not reserve " + amount + " bytes within " + timeout + "ms, " + getUsed() + " of " + capacity + " in use");
+		}
+	}
+
+	public synchronized void release(long amount) {
+		used = Math.max(0, used - amount);
+		notifyAll();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+	
+	public long getWait() {
+		return wait;
+	}
+
+	public void setWait(long wait) {
+		this.wait = wait;
+	}
+
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	public synchronized long getAvailable() {
+		return capacity - used;
+	}
+}
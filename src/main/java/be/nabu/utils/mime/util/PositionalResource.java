@@ -0,0 +1,32 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.IOException;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * A resource that can be read from any position without reading the data that comes before it (e.g. memory)
+ * Parsed parts use this to go straight to their content, files are detected automatically if they are locatable
+ */
+public interface PositionalResource extends ReadableResource {
+	public ReadableContainer<ByteBuffer> getReadable(long offset) throws IOException;
+}
@@ -0,0 +1,250 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.IOException;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.CountingReadableContainer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Reads the parent in blocks into a local array so it can be scanned directly (boundaries, linefeeds,...)
+ * Nothing is consumed until the position is explicitly moved, so scanning never reads "too much" from the perspective of whoever reads from this container
+ * The read total is the absolute amount of bytes that has been consumed, not the amount that was fetched from the parent
+ */
+public class ScanningByteContainer implements CountingReadableContainer<ByteBuffer> {
+
+	private ReadableContainer<ByteBuffer> parent;
+
+	private byte [] buffer;
+
+	/**
+	 * The position is the first unconsumed byte, the limit is the end of the valid data in the buffer
+	 */
+	private int position, limit;
+
+	/**
+	 * The absolute offset of the first byte in the buffer
+	 */
+	private long offset;
+
+	private boolean eof;
+
+	public ScanningByteContainer(ReadableContainer<ByteBuffer> parent) {
+		this(parent, 1024 * 16);
+	}
+
+	public ScanningByteContainer(ReadableContainer<ByteBuffer> parent, int bufferSize) {
+		this.parent = parent;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Reads additional data from the parent, the unconsumed data is moved to the front of the buffer if necessary
+	 * Returns the amount of bytes added, 0 if the parent has no data at this point and -1 if the parent is done
+	 */
+	public int fill() throws IOException {
+		if (eof) {
+			return -1;
+		}
+		if (parent == null) {
+			throw new IllegalStateException("The container is suspended");
+		}
+		if (limit == buffer.length) {
+			if (position > 0) {
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				offset += position;
+				limit -= position;
+				position = 0;
+			}
+			// the unconsumed data fills the entire buffer, make room
+			else {
+				byte [] larger = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, larger, 0, limit);
+				buffer = larger;
+			}
+		}
+		// mapped data can be copied straight into the buffer
+		long read = parent instanceof MappedByteContainer
+			? ((MappedByteContainer) parent).read(buffer, limit, buffer.length - limit)
+			: parent.read(IOUtils.wrap(buffer, limit, buffer.length - limit, false));
+		if (read < 0) {
+			eof = true;
+			return -1;
+		}
+		limit += (int) read;
+		return (int) read;
+	}
+
+	/**
+	 * Makes sure at least the given amount of bytes are available in the buffer starting from the position
+	 * Returns false if the parent can not deliver them (anymore)
+	 */
+	public boolean request(int amount) throws IOException {
+		while (limit - position < amount) {
+			if (fill() <= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a single byte, returns -1 if no more data is available
+	 */
+	public int read() throws IOException {
+		if (position == limit && fill() <= 0) {
+			return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	/**
+	 * Peeks at a single byte, returns -1 if no more data is available
+	 */
+	public int peek() throws IOException {
+		if (position == limit && fill() <= 0) {
+			return -1;
+		}
+		return buffer[position] & 0xff;
+	}
+
+	@Override
+	public long read(ByteBuffer target) throws IOException {
+		if (position == limit && fill() < 0) {
+			return -1;
+		}
+		int amount = (int) Math.min(limit - position, target.remainingSpace());
+		if (amount > 0) {
+			amount = target.write(buffer, position, amount);
+			position += amount;
+		}
+		return amount;
+	}
+
+	/**
+	 * Consumes the given amount of bytes, it can not exceed the available bytes
+	 */
+	public void skip(int amount) {
+		if (amount > limit - position) {
+			throw new IllegalArgumentException("Can not skip " + amount + " bytes, only " + (limit - position) + " are available");
+		}
+		position += amount;
+	}
+
+	/**
+	 * Searches the available data for the given pattern, starting at the given index in the buffer
+	 * Returns the index in the buffer or -1 if it was not found
+	 */
+	public int indexOf(byte [] pattern, int from) {
+		int last = limit - pattern.length;
+		outer: for (int i = Math.max(from, position); i <= last; i++) {
+			if (buffer[i] != pattern[0]) {
+				continue;
+			}
+			for (int j = 1; j < pattern.length; j++) {
+				if (buffer[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	public byte [] getBuffer() {
+		return buffer;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int available() {
+		return limit - position;
+	}
+
+	/**
+	 * The parent has indicated that it has no more data
+	 */
+	public boolean isEOF() {
+		return eof;
+	}
+
+	/**
+	 * Whether we have consumed everything there is to consume
+	 */
+	public boolean isDone() {
+		return eof && position == limit;
+	}
+
+	/**
+	 * The absolute amount of bytes that were fetched from the parent, this includes the data that is buffered but not yet consumed
+	 */
+	public long getFetchTotal() {
+		return offset + limit;
+	}
+
+	/**
+	 * Closes the parent but keeps the buffered data, you can resume with a new parent that continues where the previous one was closed (at the fetch total)
+	 * This allows you to release resources like file handles while you are not reading
+	 */
+	public void suspend() throws IOException {
+		if (parent != null) {
+			ReadableContainer<ByteBuffer> parent = this.parent;
+			this.parent = null;
+			parent.close();
+		}
+	}
+
+	public void resume(ReadableContainer<ByteBuffer> parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Drops the buffered data and continues at the given absolute position, the new parent must start at that position
+	 */
+	public void seek(long position, ReadableContainer<ByteBuffer> parent) throws IOException {
+		suspend();
+		this.parent = parent;
+		this.offset = position;
+		this.position = 0;
+		this.limit = 0;
+		this.eof = false;
+	}
+
+	public boolean isSuspended() {
+		return parent == null;
+	}
+
+	@Override
+	public long getReadTotal() {
+		return offset + position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		suspend();
+	}
+}
@@ -0,0 +1,192 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * Holds the data that is written to it so it can be read (as often as you want) afterwards
+ * The data is kept in memory as long as the memory can be reserved from the budget (and the maximum for this container is not exceeded), the rest goes to a temporary file
+ * Closing (or truncating) it releases the memory and deletes the file, a closed container can no longer be written to
+ */
+public class SpillingByteContainer implements WritableContainer<ByteBuffer>, Closeable {
+
+	static final int BLOCK_SIZE = 8192;
+
+	private MemoryBudget budget;
+	private long maxMemory;
+
+	private List<byte []> blocks = new ArrayList<byte []>();
+	private long memoryLength;
+
+	private File file;
+	private FileChannel channel;
+	private long fileLength;
+
+	private byte [] chunk = new byte[BLOCK_SIZE];
+	
+	private boolean closed;
+
+	public SpillingByteContainer() {
+		this(MemoryBudget.getInstance());
+	}
+
+	public SpillingByteContainer(MemoryBudget budget) {
+		this(budget, Long.MAX_VALUE);
+	}
+
+	public SpillingByteContainer(MemoryBudget budget, long maxMemory) {
+		this.budget = budget;
+		this.maxMemory = maxMemory;
+	}
+
+	@Override
+	public synchronized long write(ByteBuffer source) throws IOException {
+		if (closed) {
+			throw new IOException("The container is closed");
+		}
+		long total = 0;
+		while (source.remainingData() > 0) {
+			int read = source.read(chunk, 0, chunk.length);
+			if (read <= 0) {
+				break;
+			}
+			write(chunk, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	private void write(byte [] data, int offset, int length) throws IOException {
+		// once we spilled, everything goes to the file to keep the order
+		while (length > 0 && channel == null) {
+			int blockOffset = (int) (memoryLength % BLOCK_SIZE);
+			if (blockOffset == 0) {
+				if (memoryLength + BLOCK_SIZE > maxMemory || !budget.tryReserve(BLOCK_SIZE, budget.getWait())) {
+					file = File.createTempFile("spill", ".tmp");
+					channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+					break;
+				}
+				blocks.add(new byte[BLOCK_SIZE]);
+			}
+			int amount = Math.min(length, BLOCK_SIZE - blockOffset);
+			System.arraycopy(data, offset, blocks.get(blocks.size() - 1), blockOffset, amount);
+			memoryLength += amount;
+			offset += amount;
+			length -= amount;
+		}
+		java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(data, offset, length);
+		while (buffer.hasRemaining()) {
+			fileLength += channel.write(buffer, fileLength);
+		}
+	}
+
+	/**
+	 * Reads the data at the given position, returns -1 if there is none
+	 */
+	private synchronized int read(long position, byte [] target, int offset, int length) throws IOException {
+		if (position >= memoryLength + fileLength) {
+			return -1;
+		}
+		if (position < memoryLength) {
+			int blockOffset = (int) (position % BLOCK_SIZE);
+			int amount = (int) Math.min(length, Math.min(BLOCK_SIZE - blockOffset, memoryLength - position));
+			System.arraycopy(blocks.get((int) (position / BLOCK_SIZE)), blockOffset, target, offset, amount);
+			return amount;
+		}
+		return channel.read(java.nio.ByteBuffer.wrap(target, offset, (int) Math.min(length, memoryLength + fileLength - position)), position - memoryLength);
+	}
+
+	/**
+	 * A new reader that starts at the beginning of the data
+	 */
+	public ReadableContainer<ByteBuffer> getReadable() {
+		return new ReadableContainer<ByteBuffer>() {
+			private long position;
+			private byte [] chunk = new byte[BLOCK_SIZE];
+			@Override
+			public long read(ByteBuffer target) throws IOException {
+				long total = 0;
+				while (target.remainingSpace() > 0) {
+					int read = SpillingByteContainer.this.read(position, chunk, 0, (int) Math.min(chunk.length, target.remainingSpace()));
+					if (read < 0) {
+						return total == 0 ? -1 : total;
+					}
+					target.write(chunk, 0, read);
+					position += read;
+					total += read;
+				}
+				return total;
+			}
+			@Override
+			public void close() throws IOException {
+				// the data stays available until the container is closed
+			}
+		};
+	}
+
+	public synchronized long getSize() {
+		return memoryLength + fileLength;
+	}
+
+	public synchronized boolean isSpilled() {
+		return channel != null;
+	}
+
+	/**
+	 * Removes all the data
+	 */
+	public synchronized void truncate() throws IOException {
+		budget.release((long) blocks.size() * BLOCK_SIZE);
+		blocks.clear();
+		memoryLength = 0;
+		fileLength = 0;
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			finally {
+				channel = null;
+				file.delete();
+				file = null;
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// nothing is buffered
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		truncate();
+	}
+}
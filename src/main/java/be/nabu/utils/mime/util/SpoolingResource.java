@@ -0,0 +1,254 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Turns data that can only be read once (e.g. a socket) into a resource that can be read as often as you want from any position
+ * The data is spooled as it is read: the first bytes (up to the memory size) are kept in memory, the rest is spilled to a temporary file
+ * Nothing is read from the original data until someone asks for it, so parsing it is still a single pass over the data
+ *
+ * Close the resource when you are done with it, this releases the memory to the budget, deletes the temporary file and closes the original data
+ * The temporary file is opened with DELETE_ON_CLOSE so where the platform allows it, it is already unlinked while it is in use
+ */
+public class SpoolingResource implements PositionalResource, Closeable {
+
+	private ReadableContainer<ByteBuffer> data;
+	private int memorySize;
+
+	/**
+	 * The in-memory tier, it grows up to the memory size as long as the budget allows it
+	 */
+	private byte [] memory = new byte[0];
+	private MemoryBudget budget;
+
+	/**
+	 * The file tier, it holds everything beyond the memory size
+	 */
+	private File file;
+	private FileChannel channel;
+
+	/**
+	 * The amount of bytes that have been spooled
+	 */
+	private long spooled;
+	private boolean eof, closed;
+
+	private byte [] block = new byte[8192];
+
+	private String name, contentType;
+
+	public SpoolingResource(ReadableContainer<ByteBuffer> data) {
+		this(data, 1024 * 1024);
+	}
+
+	public SpoolingResource(ReadableContainer<ByteBuffer> data, int memorySize) {
+		this(data, memorySize, MemoryBudget.getInstance());
+	}
+
+	public SpoolingResource(ReadableContainer<ByteBuffer> data, int memorySize, MemoryBudget budget) {
+		this(data, memorySize, budget, "spool", null);
+	}
+
+	public SpoolingResource(ReadableContainer<ByteBuffer> data, int memorySize, String name, String contentType) {
+		this(data, memorySize, MemoryBudget.getInstance(), name, contentType);
+	}
+
+	public SpoolingResource(ReadableContainer<ByteBuffer> data, int memorySize, MemoryBudget budget, String name, String contentType) {
+		this.data = data;
+		this.memorySize = memorySize;
+		this.budget = budget;
+		this.name = name;
+		this.contentType = contentType;
+	}
+
+	@Override
+	public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+		return getReadable(0);
+	}
+
+	@Override
+	public ReadableContainer<ByteBuffer> getReadable(final long offset) throws IOException {
+		return new ReadableContainer<ByteBuffer>() {
+			private long position = offset;
+			private byte [] chunk = new byte[8192];
+			@Override
+			public long read(ByteBuffer target) throws IOException {
+				long total = 0;
+				while (target.remainingSpace() > 0) {
+					int read = SpoolingResource.this.read(position, chunk, 0, (int) Math.min(chunk.length, target.remainingSpace()));
+					if (read < 0) {
+						return total == 0 ? -1 : total;
+					}
+					target.write(chunk, 0, read);
+					position += read;
+					total += read;
+				}
+				return total;
+			}
+			@Override
+			public void close() throws IOException {
+				// the spool stays available until the resource is closed
+			}
+		};
+	}
+
+	/**
+	 * Reads the data at the given position, more is spooled from the original data if necessary
+	 * Returns -1 if the position is beyond the end of the data
+	 */
+	public synchronized int read(long position, byte [] target, int offset, int length) throws IOException {
+		if (closed) {
+			throw new IOException("The spooling resource is closed");
+		}
+		while (spooled <= position && !eof) {
+			spool();
+		}
+		if (position >= spooled) {
+			return -1;
+		}
+		length = (int) Math.min(length, spooled - position);
+		int amount = 0;
+		// the part in memory
+		if (position < memorySize) {
+			amount = (int) Math.min(length, memorySize - position);
+			System.arraycopy(memory, (int) position, target, offset, amount);
+		}
+		// the part in the file
+		while (amount < length) {
+			int read = channel.read(java.nio.ByteBuffer.wrap(target, offset + amount, length - amount), position + amount - memorySize);
+			if (read <= 0) {
+				throw new IOException("Could not read the spooled data at " + (position + amount));
+			}
+			amount += read;
+		}
+		return amount;
+	}
+
+	/**
+	 * Reads the next block of the original data into the spool
+	 */
+	private void spool() throws IOException {
+		long read = data.read(IOUtils.wrap(block, false));
+		if (read < 0) {
+			eof = true;
+			data.close();
+			return;
+		}
+		int amount = (int) read;
+		int offset = 0;
+		// fill up the memory first
+		if (spooled < memorySize) {
+			int inMemory = (int) Math.min(amount, memorySize - spooled);
+			if (spooled + inMemory > memory.length) {
+				int size = (int) Math.min(memorySize, Math.max(Math.max(4096, memory.length * 2), spooled + inMemory));
+				if (budget.tryReserve(size - memory.length, budget.getWait())) {
+					memory = Arrays.copyOf(memory, size);
+				}
+				// if the budget is exhausted, the memory tier stops where it is and the rest goes to disk
+				else {
+					memorySize = memory.length;
+					inMemory = (int) Math.min(inMemory, memorySize - spooled);
+				}
+			}
+			System.arraycopy(block, 0, memory, (int) spooled, inMemory);
+			offset = inMemory;
+			spooled += inMemory;
+		}
+		if (offset < amount) {
+			if (channel == null) {
+				file = File.createTempFile("spool", ".tmp");
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+			}
+			java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(block, offset, amount - offset);
+			while (buffer.hasRemaining()) {
+				spooled += channel.write(buffer, spooled - memorySize);
+			}
+		}
+	}
+
+	/**
+	 * Reads the original data to the end, this returns the total size
+	 */
+	public synchronized long spoolAll() throws IOException {
+		while (!eof) {
+			spool();
+		}
+		return spooled;
+	}
+
+	/**
+	 * The amount of bytes spooled so far
+	 */
+	public synchronized long getSpooled() {
+		return spooled;
+	}
+
+	/**
+	 * Whether part of the data was spilled to disk
+	 */
+	public synchronized boolean isSpilled() {
+		return channel != null;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			budget.release(memory.length);
+			memory = null;
+			try {
+				if (!eof) {
+					data.close();
+				}
+			}
+			finally {
+				if (channel != null) {
+					channel.close();
+					file.delete();
+				}
+			}
+		}
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public ResourceContainer<?> getParent() {
+		return null;
+	}
+}
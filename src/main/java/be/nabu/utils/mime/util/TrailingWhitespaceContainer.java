@@ -0,0 +1,201 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.util;
+
+import java.io.IOException;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.CharBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * Passes the data on to the parent (if any) but holds back the whitespace at the end, up to a maximum amount
+ * Once all the data is written, you know how much trailing whitespace there was without having kept the tail around
+ * The whitespace is the same as "\\s" in a regex, if more than the maximum amount follows the content, the oldest is passed on
+ * It can be reset and reused for the next content, the buffers are kept
+ */
+public class TrailingWhitespaceContainer implements WritableContainer<ByteBuffer> {
+
+	private WritableContainer<ByteBuffer> parent;
+	
+	/**
+	 * The whitespace that is held back, it starts at "start" and contains "pending" bytes
+	 */
+	private byte [] ring;
+	private int start, pending;
+	
+	private byte [] block = new byte[8192];
+	
+	/**
+	 * The buffers to read with, they are only created when needed
+	 */
+	private ByteBuffer bytes;
+	private CharBuffer chars;
+	private char [] charBlock;
+	
+	public TrailingWhitespaceContainer(WritableContainer<ByteBuffer> parent, int maxWhitespace) {
+		this.parent = parent;
+		this.ring = new byte[maxWhitespace];
+	}
+	
+	/**
+	 * Forgets the whitespace that was held back and starts over with the new parent
+	 */
+	public void reset(WritableContainer<ByteBuffer> parent, int maxWhitespace) {
+		this.parent = parent;
+		if (ring.length != maxWhitespace) {
+			ring = new byte[maxWhitespace];
+		}
+		start = 0;
+		pending = 0;
+	}
+	
+	/**
+	 * Writes all the data that can be read
+	 */
+	public long writeBytes(ReadableContainer<ByteBuffer> data) throws IOException {
+		if (bytes == null) {
+			bytes = IOUtils.wrap(new byte[block.length], false);
+		}
+		bytes.truncate();
+		return IOUtils.copy(data, this, bytes);
+	}
+	
+	/**
+	 * Writes all the data that can be read, each char is taken as a byte (the parser reads the data one byte per char)
+	 */
+	public long writeChars(ReadableContainer<CharBuffer> data) throws IOException {
+		if (chars == null) {
+			chars = IOUtils.wrap(new char[block.length], false);
+			charBlock = new char[block.length];
+		}
+		chars.truncate();
+		long total = 0;
+		while (data.read(chars) > 0) {
+			while (chars.remainingData() > 0) {
+				int read = chars.read(charBlock, 0, charBlock.length);
+				for (int i = 0; i < read; i++) {
+					block[i] = (byte) charBlock[i];
+				}
+				process(read);
+				total += read;
+			}
+			chars.truncate();
+		}
+		return total;
+	}
+	
+	@Override
+	public long write(ByteBuffer source) throws IOException {
+		long total = 0;
+		while (source.remainingData() > 0) {
+			int read = source.read(block, 0, block.length);
+			if (read <= 0) {
+				break;
+			}
+			process(read);
+			total += read;
+		}
+		return total;
+	}
+
+	private void process(int length) throws IOException {
+		int contentStart = -1;
+		for (int i = 0; i < length; i++) {
+			if (isWhitespace(block[i])) {
+				// the content up until now can go
+				if (contentStart >= 0) {
+					write(block, contentStart, i - contentStart);
+					contentStart = -1;
+				}
+				if (pending == ring.length) {
+					if (ring.length == 0) {
+						write(block, i, 1);
+						continue;
+					}
+					// the oldest whitespace is too far from the end to matter
+					write(ring, start, 1);
+					ring[start] = block[i];
+					start = (start + 1) % ring.length;
+				}
+				else {
+					ring[(start + pending++) % ring.length] = block[i];
+				}
+			}
+			else if (contentStart < 0) {
+				// the whitespace is followed by content so it is part of the content
+				release();
+				contentStart = i;
+			}
+		}
+		if (contentStart >= 0) {
+			write(block, contentStart, length - contentStart);
+		}
+	}
+	
+	private void write(byte [] bytes, int offset, int length) throws IOException {
+		if (parent != null && length > 0) {
+			ByteBuffer buffer = IOUtils.wrap(bytes, offset, length, true);
+			while (buffer.remainingData() > 0) {
+				if (parent.write(buffer) <= 0) {
+					throw new IOException("Could not write the content to the parent");
+				}
+			}
+		}
+	}
+	
+	private static boolean isWhitespace(byte current) {
+		return current == ' ' || current == '\t' || current == '\n' || current == '\r' || current == '\f' || current == 0x0B;
+	}
+	
+	/**
+	 * The amount of whitespace at the end of the data that is being held back
+	 */
+	public int getTrailingWhitespace() {
+		return pending;
+	}
+	
+	/**
+	 * Passes the whitespace that is held back on to the parent, use this if the whitespace turns out to be content after all
+	 */
+	public void release() throws IOException {
+		if (pending > 0) {
+			int first = Math.min(pending, ring.length - start);
+			write(ring, start, first);
+			write(ring, 0, pending - first);
+		}
+		start = 0;
+		pending = 0;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (parent != null) {
+			parent.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (parent != null) {
+			parent.close();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.mime.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.util.PositionalResource;
+
+/**
+ * An in-memory resource for the tests, it keeps track of how often it was opened and how much was read from the start
+ */
+public class BytesResource implements PositionalResource, FiniteResource {
+
+	private String name;
+	private byte [] bytes;
+	private int opened;
+	private long read;
+
+	public BytesResource(String name, byte [] bytes) {
+		this.name = name;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * A resource that can only be read from the start
+	 */
+	public static ReadableResource sequential(String name, byte [] bytes) {
+		final BytesResource resource = new BytesResource(name, bytes);
+		return new ReadableResource() {
+			@Override
+			public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+				return resource.getReadable();
+			}
+			@Override
+			public String getContentType() {
+				return resource.getContentType();
+			}
+			@Override
+			public String getName() {
+				return resource.getName();
+			}
+			@Override
+			public ResourceContainer<?> getParent() {
+				return null;
+			}
+		};
+	}
+
+	@Override
+	public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+		opened++;
+		final ReadableContainer<ByteBuffer> readable = IOUtils.wrap(new ByteArrayInputStream(bytes));
+		return new ReadableContainer<ByteBuffer>() {
+			@Override
+			public long read(ByteBuffer target) throws IOException {
+				long amount = readable.read(target);
+				read += Math.max(0, amount);
+				return amount;
+			}
+			@Override
+			public void close() throws IOException {
+				readable.close();
+			}
+		};
+	}
+
+	@Override
+	public ReadableContainer<ByteBuffer> getReadable(long offset) throws IOException {
+		return IOUtils.wrap(new ByteArrayInputStream(bytes, (int) offset, bytes.length - (int) offset));
+	}
+
+	@Override
+	public long getSize() {
+		return bytes.length;
+	}
+
+	@Override
+	public String getContentType() {
+		return "message/rfc822";
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public ResourceContainer<?> getParent() {
+		return null;
+	}
+
+	/**
+	 * How often the resource was opened at the start
+	 */
+	public int getOpened() {
+		return opened;
+	}
+
+	/**
+	 * The amount of bytes that were read from the start
+	 */
+	public long getRead() {
+		return read;
+	}
+
+	public byte [] getBytes() {
+		return bytes;
+	}
+}
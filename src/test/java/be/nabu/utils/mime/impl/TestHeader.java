@@ -17,13 +17,18 @@
 
 package be.nabu.utils.mime.impl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.Arrays;
 
 import junit.framework.TestCase;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.CharBuffer;
+import be.nabu.utils.io.api.PushbackContainer;
 import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiableHeader;
 import be.nabu.utils.mime.impl.MimeHeader;
 
 public class TestHeader extends TestCase {
@@ -57,14 +62,107 @@ public class TestHeader extends TestCase {
 			"Subject",
 			"We_need to test-some-things_like_thüs_to find.errors "
 		);
-		// the following should fail as the encoding is incorrect
-		try {
-			MimeHeader.parseHeader(header.replace("iso-8859-1", "UTF-8"));
-			fail("The content should not be decodeable as it is not valid UTF-8");
+		// the following can not be decoded as it is not valid UTF-8, the words are left as they are
+		String invalid = header.replace("iso-8859-1", "UTF-8");
+		assertEquals(invalid.substring("Subject : ".length()), MimeHeader.parseHeader(invalid).getValue());
+	}
+	
+	public void testEncodedWords() throws ParseException, IOException {
+		// base64, with the whitespace around it kept
+		assertEquals("Hello tést world", MimeHeader.parseHeader("Subject: Hello =?UTF-8?B?dMOpc3Q=?= world").getValue());
+		// a character that is split over two words
+		assertEquals("tést", MimeHeader.parseHeader("Subject: =?utf-8?q?t=C3?= =?utf-8?q?=A9st?=").getValue());
+		assertEquals("tést", MimeHeader.parseHeader("Subject: =?utf-8?b?dMM=?==?utf-8?b?qXN0?=").getValue());
+		// different charsets are decoded separately
+		assertEquals("tést thüs", MimeHeader.parseHeader("Subject: =?UTF-8?Q?t=C3=A9st_?=\r\n =?ISO-8859-1*en?Q?th=FCs?=").getValue());
+		// things that only look like encoded words are left alone
+		assertEquals("a =? b ?= c =?x?", MimeHeader.parseHeader("Subject: a =? b ?= c =?x?").getValue());
+		assertEquals("plain", MimeHeader.parseHeader("Subject: plain").getValue());
+		// words that can not be decoded are left as they are
+		assertEquals("=?unknown-charset?Q?test?= ok", MimeHeader.parseHeader("Subject: =?unknown-charset?Q?test?= =?UTF-8?Q?ok?=").getValue());
+		assertEquals("a =?UTF-8?B?d*M=?= b", MimeHeader.parseHeader("Subject: a =?UTF-8?B?d*M=?= b").getValue());
+		assertEquals("=?UTF-8?X?test?=", MimeHeader.parseHeader("Subject: =?UTF-8?X?test?=").getValue());
+		assertEquals("a =?UTF-8?Q?t=E9st?= b", MimeHeader.parseHeader("Subject: a =?UTF-8?Q?t=E9st?= b").getValue());
+		// the charset is case insensitive
+		assertEquals("th\u00fcs", MimeHeader.parseHeader("Subject: =?IsO-8859-1?Q?th=FCs?=").getValue());
+	}
+	
+	public void testReadHeaders() throws ParseException, IOException {
+		String data = "Content-Type: text/plain;\r\n\tcharset=UTF-8\nSubject: folded\r\n  over lines\r\n\r\nbody";
+		// the pushback container is read in blocks, the rest is read one char at a time
+		PushbackContainer<CharBuffer> pushback = IOUtils.pushback(IOUtils.wrap(data.toCharArray(), true));
+		CharBuffer plain = IOUtils.wrap(data.toCharArray(), true);
+		for (Header [] headers : Arrays.asList(MimeUtils.readHeaders(pushback, true), MimeUtils.readHeaders(plain, true))) {
+			assertEquals(2, headers.length);
+			assertHeader(headers[0], "Content-Type", "text/plain", "charset=UTF-8");
+			assertHeader(headers[1], "Subject", "folded over lines");
 		}
-		catch(Exception e) {
-			// expected
+		// the body must remain untouched
+		assertEquals("body", IOUtils.toString(pushback));
+		assertEquals("body", IOUtils.toString(plain));
+		// without the empty line the headers are not finished
+		assertNull(MimeUtils.readHeaders(IOUtils.wrap("Subject: test\r\n".toCharArray(), true), true));
+		assertEquals(1, MimeUtils.readHeaders(IOUtils.wrap("Subject: test\r\n".toCharArray(), true), false).length);
+	}
+	
+	public void testByteHeaders() throws ParseException, IOException {
+		String data = "Content-Type:text/plain;charset=UTF-8\r\nSubject: =?UTF-8?B?dMOpc3Q=?=\r\nX-Raw: caf\u00e9 \r\n\r\n";
+		Header [] headers = MimeUtils.readHeaders(IOUtils.wrap(data.toCharArray(), true), true);
+		assertEquals(3, headers.length);
+		// the encoded one is decoded straight away
+		assertTrue(headers[0] instanceof ByteHeader);
+		// but they are mime headers like any other parsed header
+		assertTrue(headers[0] instanceof MimeHeader);
+		assertTrue(headers[1] instanceof MimeHeader);
+		assertHeader(headers[1], "Subject", "tést");
+		assertEquals("X-Raw", headers[2].getName());
+		// parsed headers are compared by value
+		Header [] again = MimeUtils.readHeaders(IOUtils.wrap(data.toCharArray(), true), true);
+		assertEquals(headers[0], again[0]);
+		assertEquals(headers[0].hashCode(), again[0].hashCode());
+		assertFalse(headers[0].equals(again[2]));
+		MimeHeader equal = new MimeHeader("Content-Type", "text/plain", "charset=UTF-8");
+		assertEquals(equal, headers[0]);
+		assertEquals(headers[0], equal);
+		assertEquals(equal.hashCode(), headers[0].hashCode());
+		// unmodified 7-bit headers are written as they came in, others are formatted like any other
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		MimeUtils.writeHeaders(IOUtils.wrap(output), headers[0], headers[2]);
+		assertEquals("Content-Type:text/plain;charset=UTF-8\r\n" + new MimeHeader("X-Raw", "caf\u00e9") + "\r\n", new String(output.toByteArray(), "ISO-8859-1"));
+		// as are those that are too long for a single line
+		StringBuilder longValue = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			longValue.append("; parameter").append(i).append("=value");
 		}
+		Header [] folded = MimeUtils.readHeaders(IOUtils.wrap(("Content-Type: text/plain" + longValue + "\r\n\r\n").toCharArray(), true), true);
+		output = new ByteArrayOutputStream();
+		MimeUtils.writeHeaders(IOUtils.wrap(output), folded);
+		assertTrue(new String(output.toByteArray(), "ASCII").startsWith("Content-Type: text/plain;\r\n\tparameter0=value;\r\n"));
+		assertHeader(headers[0], "Content-Type", "text/plain", "charset=UTF-8");
+		// once modified, they are formatted like any other
+		((ModifiableHeader) headers[0]).addComment("boundary=test");
+		assertHeader(headers[0], "Content-Type", "text/plain", "charset=UTF-8", "boundary=test");
+		output = new ByteArrayOutputStream();
+		MimeUtils.writeHeaders(IOUtils.wrap(output), headers[0]);
+		assertTrue(new String(output.toByteArray(), "ASCII").startsWith("Content-Type: text/plain;"));
+	}
+	
+	public void testHeaderNames() throws ParseException, IOException {
+		Header [] headers = MimeUtils.readHeaders(IOUtils.wrap("Content-Type: text/plain\r\ncontent-length: 10\r\nX-Custom-Header: =?UTF-8?Q?a?=\r\n\r\n".toCharArray(), true), true);
+		// spelled the same way, so the same instance
+		assertSame(HeaderNames.CONTENT_TYPE, headers[0].getName());
+		assertSame("Content-Type", MimeHeader.parseHeader("Content-Type: text/plain").getName());
+		// the case as it was sent is kept
+		assertEquals("content-length", headers[1].getName());
+		assertSame(headers[1], MimeUtils.getHeader("Content-Length", headers));
+		assertEquals("content-length", HeaderNames.toLowerCase(headers[1].getName()));
+		// custom names can be registered
+		assertFalse(HeaderNames.isRegistered("X-Custom-Header"));
+		String custom = HeaderNames.register(new String("X-Custom-Header"));
+		assertSame(custom, HeaderNames.register("x-custom-header"));
+		assertSame(custom, MimeHeader.parseHeader("X-Custom-Header: b").getName());
+		assertTrue(HeaderNames.isRegistered("X-CUSTOM-HEADER"));
+		assertEquals("x-custom-header", HeaderNames.toLowerCase(custom));
 	}
 	
 	public void assertHeader(Header header, String name, String value, String...comments) {
@@ -93,4 +191,63 @@ public class TestHeader extends TestCase {
 			"text/plain"
 		);
 	}
+	
+	public void testHeaderMap() {
+		MimeHeader contentType = new MimeHeader("Content-Type", "multipart/mixed");
+		PlainMimeMultiPart part = new PlainMimeMultiPart(null, contentType, new MimeHeader("content-length", "10"));
+		HeaderMap headers = MimeUtils.getHeaderMap(part);
+		assertSame(contentType, headers.getHeader("CONTENT-TYPE"));
+		// the snapshot is shared until something changes
+		assertSame(part.getHeaders(), part.getHeaders());
+		assertEquals("multipart/mixed", part.getContentType());
+		assertEquals(Long.valueOf(10), headers.getContentLength());
+		assertNull(headers.getBoundary());
+		// changing the header itself
+		contentType.addComment("boundary=test");
+		assertEquals("test", headers.getBoundary());
+		contentType.setValue("multipart/related");
+		assertEquals("multipart/related", part.getContentType());
+		// changing the headers of the part
+		Header [] before = part.getHeaders();
+		part.removeHeader("Content-Length");
+		part.setHeader(new MimeHeader("Content-Length", "20"));
+		assertEquals(2, before.length);
+		assertNotSame(before, part.getHeaders());
+		assertEquals(Long.valueOf(20), headers.getContentLength());
+		part.removeHeader("content-type");
+		assertNull(headers.getHeader("Content-Type"));
+		assertEquals("text/plain", part.getContentType());
+		assertEquals("us-ascii", headers.getCharset());
+	}
+	
+	public void testMediaType() throws ParseException, IOException {
+		// a ";" in a quoted string does not split the header
+		Header disposition = MimeHeader.parseHeader("Content-Disposition: attachment; filename=\"a;b \\\"c\\\".txt\"; size=10");
+		assertEquals(2, disposition.getComments().length);
+		assertEquals("a;b \"c\".txt", MimeUtils.getName(disposition));
+		assertEquals(Long.valueOf(10), MimeUtils.getSize(disposition));
+		// a size that is not a number is ignored
+		assertNull(ContentDisposition.parse("attachment; size=large").getSize());
+		assertSame(ContentDisposition.parse(disposition), ContentDisposition.parse(disposition));
+		
+		// rfc2231 extended values and continuations
+		assertEquals("tést.pdf", ContentDisposition.parse("attachment; filename=test.pdf; filename*=UTF-8'en't%C3%A9st.pdf").getFilename());
+		assertEquals("a long tést", ContentDisposition.parse("form-data", "name*0=\"a long \"", "name*1*=%74%C3", "name*2*=%A9st").getName());
+		assertEquals("a long tést", MimeUtils.getFormName(new MimeHeader("Content-Disposition", "form-data; name*0*=UTF-8''a%20long%20t%C3; name*1*=%A9st")));
+		
+		// common media types are shared
+		assertSame(MediaType.parse(new MimeHeader("Content-Type", "text/plain")), MediaType.parse(MimeHeader.parseHeader("Content-Type: text/plain")));
+		MimeHeader contentType = new MimeHeader("Content-Type", "multipart/mixed", "boundary=\"abc\"");
+		MediaType mediaType = MediaType.parse(contentType);
+		assertSame("multipart/mixed", mediaType.getBaseType());
+		assertEquals("abc", MimeUtils.getBoundary(contentType));
+		assertSame(mediaType, MediaType.parse(contentType));
+		// the cached value is dropped when the header changes
+		contentType.setComments("boundary=def", "charset=utf-8");
+		assertEquals("def", MimeUtils.getBoundary(contentType));
+		assertEquals("utf-8", MimeUtils.getCharset(contentType));
+		assertEquals("multipart/mixed; boundary=\"def\"; charset=\"utf-8\"", MediaType.parse(contentType).toString());
+		assertNull(MimeUtils.getCharset(new MimeHeader("Content-Type", "application/json")));
+		assertEquals("us-ascii", MimeUtils.getCharset());
+	}
 }
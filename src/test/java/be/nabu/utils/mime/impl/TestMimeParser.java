@@ -17,11 +17,20 @@
 
 package be.nabu.utils.mime.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.TestCase;
 import be.nabu.libs.resources.ResourceFactory;
@@ -29,8 +38,15 @@ import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.DecodedPartHandler;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.MimeEventHandler;
 import be.nabu.utils.mime.api.MultiPart;
 import be.nabu.utils.mime.api.Part;
+import be.nabu.utils.mime.api.PartFilter;
+import be.nabu.utils.mime.util.MappedFile;
+import be.nabu.utils.mime.util.MemoryBudget;
 
 public class TestMimeParser extends TestCase {
 
@@ -138,5 +154,565 @@ public class TestMimeParser extends TestCase {
 			assertEquals("steevo@idocs.com", part.getValues().get("email").get(0));
 	}
 	
+	public void testByteNative() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "example2.mime", "multipart.mime", "formupload.html", "plainpost.html", "chunked.html", "wikipedia.gz", "wikipedia.mime", "nested.mime" }) {
+			URI uri = new URI("classpath:/" + name);
+			MimeParser parser = new MimeParser();
+			ParsedMimePart expected = parser.parse(getResource(uri));
+			parser.setByteNative(true);
+			ParsedMimePart actual = parser.parse(getResource(uri));
+			assertSameStructure(name, expected, actual);
+		}
+		MimeParser parser = new MimeParser();
+		parser.setByteNative(true);
+		Part attachmentText = ((MultiPart) parser.parse(getResource(new URI("classpath:/example2.mime")))).getChild("test.txt");
+		assertEquals("this is the attachment text", toString(attachmentText));
+	}
+	
+	public void testIndex() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "example2.mime", "formupload.html", "chunked.html", "nested.mime" }) {
+			ReadableResource resource = getResource(new URI("classpath:/" + name));
+			MimeParser parser = new MimeParser();
+			ParsedMimePart expected = parser.parse(resource);
+			MimeIndex index = MimeIndex.build(expected);
+			assertSameStructure(name, expected, index.open(resource, parser));
+		}
+		ReadableResource resource = getResource(new URI("classpath:/example2.mime"));
+		MimeParser parser = new MimeParser();
+		MultiPart part = (MultiPart) MimeIndex.build(parser.parse(resource)).open(resource, parser);
+		assertEquals("this is the attachment text", toString(part.getChild("test.txt")));
+	}
+	
+	public void testSidecar() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "example2.mime", "formupload.html", "chunked.html", "nested.mime" }) {
+			ReadableResource resource = getResource(new URI("classpath:/" + name));
+			MimeParser parser = new MimeParser();
+			ParsedMimePart expected = parser.parse(resource);
+			ByteBuffer sidecar = IOUtils.newByteBuffer();
+			MimeIndex.build(expected).write(sidecar, resource);
+			assertSameStructure(name, expected, MimeIndex.load(sidecar, resource, parser));
+		}
+		// a sidecar for other data is stale
+		ReadableResource resource = getResource(new URI("classpath:/example2.mime"));
+		MimeParser parser = new MimeParser();
+		ByteBuffer sidecar = IOUtils.newByteBuffer();
+		MimeIndex.build(parser.parse(resource)).write(sidecar, resource);
+		assertNull(MimeIndex.load(sidecar, getResource(new URI("classpath:/example.mime")), parser));
+		
+		// an edit past the start of the data that keeps the size is detected as well
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 200000) {
+			large.append("some large content that does not fit in the first block\r\n");
+		}
+		byte [] bytes = ("Content-Type: multipart/mixed; boundary=\"b\"\r\n\r\n--b\r\nContent-Type: text/plain\r\n\r\n" + large + "\r\n--b--\r\n").getBytes("ASCII");
+		sidecar = IOUtils.newByteBuffer();
+		MimeIndex.build(parser.parse(new BytesResource("large.mime", bytes))).write(sidecar, new BytesResource("large.mime", bytes));
+		byte [] sidecarBytes = IOUtils.toBytes(sidecar);
+		assertNotNull(MimeIndex.load(IOUtils.wrap(new ByteArrayInputStream(sidecarBytes)), new BytesResource("large.mime", bytes), parser));
+		byte [] edited = bytes.clone();
+		edited[edited.length - 100] = 'X';
+		assertNull(MimeIndex.load(IOUtils.wrap(new ByteArrayInputStream(sidecarBytes)), new BytesResource("large.mime", edited), parser));
+		
+		// a corrupt part count does not lead to a huge allocation
+		sidecarBytes[32] = 0x7f;
+		try {
+			MimeIndex.read(IOUtils.wrap(new ByteArrayInputStream(sidecarBytes)));
+			fail("The sidecar is corrupt");
+		}
+		catch (IOException e) {
+			// expected, the data runs out
+		}
+		catch (ParseException e) {
+			// expected, the data is not valid
+		}
+	}
+	
+	public void testPositional() throws ParseException, URISyntaxException, IOException {
+		BytesResource resource = new BytesResource("example2.mime", IOUtils.toBytes(getResource(new URI("classpath:/example2.mime")).getReadable()));
+		MultiPart part = (MultiPart) new MimeParser().parse(resource);
+		int opened = resource.getOpened();
+		assertEquals("this is the attachment text", toString(part.getChild("test.txt")));
+		// once parsed, the content must be read positionally
+		assertEquals(opened, resource.getOpened());
+	}
+	
+	public void testMemoryMapped() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "example2.mime", "formupload.html", "chunked.html", "wikipedia.mime", "nested.mime" }) {
+			ReadableResource resource = getResource(new URI("classpath:/" + name));
+			MimeParser parser = new MimeParser();
+			parser.setMemoryMapped(true);
+			assertSameStructure(name, new MimeParser().parse(resource), parser.parse(resource));
+		}
+		MimeParser parser = new MimeParser();
+		parser.setMemoryMapped(true);
+		MultiPart part = (MultiPart) parser.parse(getResource(new URI("classpath:/example2.mime")));
+		assertEquals("this is the attachment text", toString(part.getChild("test.txt")));
+		
+		// reads that cross windows
+		File file = new File(getClass().getResource("/nested.mime").toURI());
+		byte [] expected = IOUtils.toBytes(getResource(new URI("classpath:/nested.mime")).getReadable());
+		MappedFile mapped = new MappedFile(file, 7);
+		assertEquals(expected.length, mapped.getSize());
+		assertTrue(Arrays.equals(expected, IOUtils.toBytes(mapped.getReadable(0, mapped.getSize()))));
+		byte [] range = new byte[100];
+		assertEquals(100, mapped.getReadable(33, 100).read(range, 0, 100));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 33, 133), range));
+		int total = 0;
+		for (java.nio.ByteBuffer buffer : mapped.getReadable(33, 100).remaining()) {
+			while (buffer.hasRemaining()) {
+				assertEquals(expected[33 + total++], buffer.get());
+			}
+		}
+		assertEquals(100, total);
+	}
+	
+	public void testLazy() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "example2.mime", "multipart.mime", "formupload.html", "chunked.html", "wikipedia.mime", "nested.mime" }) {
+			ReadableResource resource = getResource(new URI("classpath:/" + name));
+			MimeParser parser = new MimeParser();
+			parser.setLazy(true);
+			assertSameStructure(name, new MimeParser().parse(resource), parser.parse(resource));
+			parser.setMemoryMapped(true);
+			assertSameStructure(name, new MimeParser().parse(resource), parser.parse(resource));
+		}
+		MimeParser parser = new MimeParser();
+		parser.setLazy(true);
+		ParsedMimeMultiPart part = (ParsedMimeMultiPart) parser.parse(getResource(new URI("classpath:/nested.mime")));
+		assertTrue(part.isParsing());
+		// only the first child is parsed
+		assertNotNull(part.iterator().next());
+		assertEquals(1, part.getParsedCount());
+		assertTrue(part.isParsing());
+		assertTrue(part.getSize() > 0);
+		assertFalse(part.isParsing());
+		
+		// data that can not be reopened stays open in between
+		ReadableResource resource = BytesResource.sequential("nested.mime", IOUtils.toBytes(getResource(new URI("classpath:/nested.mime")).getReadable()));
+		ParsedMimeMultiPart sequential = (ParsedMimeMultiPart) parser.parse(resource);
+		assertTrue(sequential.isParsing());
+		assertSameStructure("nested.mime", new MimeParser().parse(resource), sequential);
+		// once everything is read, the parsing is done
+		assertFalse(sequential.isParsing());
+	}
+	
+	public void testEvents() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "example2.mime", "multipart.mime", "formupload.html", "nested.mime" }) {
+			ReadableResource resource = getResource(new URI("classpath:/" + name));
+			final byte [] bytes = IOUtils.toBytes(resource.getReadable());
+			// the expected events in order: the depth, the size and the body (null for multiparts)
+			final List<Object> expected = new ArrayList<Object>();
+			addEvents(expected, new MimeParser().parse(resource), 0, bytes, 0);
+			final List<Object> actual = new ArrayList<Object>();
+			final List<Integer> depths = new ArrayList<Integer>();
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			new MimeParser().parse(IOUtils.wrap(bytes, true), new MimeEventHandler() {
+				@Override
+				public void onPartStart(Header[] headers, int depth) {
+					depths.add(depth);
+					body.reset();
+				}
+				@Override
+				public void onBodyBytes(ByteBuffer bytes) throws IOException {
+					byte [] data = new byte[(int) bytes.remainingData()];
+					body.write(data, 0, bytes.read(data));
+				}
+				@Override
+				public void onTrailers(Header...headers) {
+					// no trailers
+				}
+				@Override
+				public void onPartEnd(long size) {
+					// the end of a multipart comes after its children
+					actual.add(depths.remove(depths.size() - 1));
+					actual.add(size);
+					actual.add(body.size() == 0 ? null : new String(body.toByteArray(), MimeByteParser.CHARSET));
+					body.reset();
+				}
+			}, false);
+			assertEquals(name, expected, actual);
+		}
+	}
+	
+	public void testFeed() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "example2.mime", "multipart.mime", "formupload.html", "nested.mime" }) {
+			ReadableResource resource = getResource(new URI("classpath:/" + name));
+			byte [] bytes = IOUtils.toBytes(resource.getReadable());
+			List<Object> expected = new ArrayList<Object>();
+			addEvents(expected, new MimeParser().parse(resource), 0, bytes, 0);
+			// the data arrives in fragments of varying size
+			for (int fragment : new int [] { 1, 3, 17, 512, bytes.length }) {
+				MimeFeedParser parser = new MimeFeedParser(new MimeParser(), 64);
+				List<Object> actual = new ArrayList<Object>();
+				List<Integer> depths = new ArrayList<Integer>();
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				boolean done = false;
+				for (int i = 0; !done; i += fragment) {
+					ByteBuffer data = IOUtils.wrap(bytes, Math.min(i, bytes.length), Math.max(0, Math.min(fragment, bytes.length - i)), true);
+					MimeFeedParser.Event event = i >= bytes.length ? parser.end() : parser.feed(data);
+					while (event != MimeFeedParser.Event.NEED_MORE && !done) {
+						switch (event) {
+							case PART_HEADERS:
+								depths.add(parser.getDepth());
+								body.reset();
+							break;
+							case BODY_CHUNK:
+								ByteBuffer chunk = parser.getChunk();
+								byte [] content = new byte[(int) chunk.remainingData()];
+								body.write(content, 0, chunk.read(content));
+							break;
+							case PART_END:
+								actual.add(depths.remove(depths.size() - 1));
+								actual.add(parser.getSize());
+								actual.add(body.size() == 0 ? null : new String(body.toByteArray(), MimeByteParser.CHARSET));
+								body.reset();
+							break;
+							case DONE:
+								done = true;
+							break;
+							default:
+						}
+						if (!done) {
+							event = i >= bytes.length ? parser.end() : parser.feed(data);
+						}
+					}
+					assertTrue(name, done || i < bytes.length);
+				}
+				assertEquals(name + " in fragments of " + fragment, expected, actual);
+			}
+		}
+		// a chunked message is dechunked, the trailers come before the end of the root
+		byte [] bytes = IOUtils.toBytes(getResource(new URI("classpath:/chunked.html")).getReadable());
+		for (int fragment : new int [] { 1, bytes.length }) {
+			MimeFeedParser parser = new MimeFeedParser();
+			StringBuilder events = new StringBuilder();
+			for (int i = 0; i < bytes.length; i += fragment) {
+				ByteBuffer data = IOUtils.wrap(bytes, i, Math.min(fragment, bytes.length - i), true);
+				for (MimeFeedParser.Event event = parser.feed(data); event != MimeFeedParser.Event.NEED_MORE; event = parser.feed(data)) {
+					append(parser, event, events);
+				}
+			}
+			for (MimeFeedParser.Event event = parser.end(); event != MimeFeedParser.Event.DONE; event = parser.end()) {
+				append(parser, event, events);
+			}
+			assertEquals(";PART_HEADERSabcdefghijklmnopqrstuvwxyz1234567890abcdef;trailers=2;PART_END", events.toString());
+		}
+	}
+	
+	public void testStream() throws ParseException, URISyntaxException, IOException {
+		// a persistent connection with consecutive messages
+		List<byte []> messages = new ArrayList<byte []>();
+		for (String name : new String [] { "plainpost.html", "formupload.html", "chunked.html", "plainpost.html" }) {
+			messages.add(IOUtils.toBytes(getResource(new URI("classpath:/" + name)).getReadable()));
+		}
+		// the content length of the upload was calculated with windows line endings
+		String upload = new String(messages.get(1), MimeByteParser.CHARSET);
+		messages.set(1, upload.replace("Content-Length: 441", "Content-Length: " + (upload.length() - upload.indexOf("\n\n") - 2)).getBytes(MimeByteParser.CHARSET));
+		// the trailers of the chunked one need an empty line to end
+		messages.set(2, Arrays.copyOf(messages.get(2), messages.get(2).length + 1));
+		messages.get(2)[messages.get(2).length - 1] = '\n';
+		ByteArrayOutputStream connection = new ByteArrayOutputStream();
+		for (byte [] message : messages) {
+			connection.write(message, 0, message.length);
+		}
+		byte [] bytes = connection.toByteArray();
+		MimeParser mimeParser = new MimeParser();
+		mimeParser.setRequireKnownContentLength(true);
+		MimeStreamParser parser = new MimeStreamParser(mimeParser, IOUtils.wrap(new ByteArrayInputStream(bytes)), 64);
+		long end = 0;
+		for (byte [] message : messages) {
+			// the same events as when the message is parsed on its own
+			StringBuilder expected = new StringBuilder();
+			assertTrue(new MimeStreamParser(mimeParser, IOUtils.wrap(new ByteArrayInputStream(message)), 64).next(newRecorder(expected), false));
+			StringBuilder actual = new StringBuilder();
+			assertTrue(parser.next(newRecorder(actual), false));
+			assertEquals(expected.toString(), actual.toString());
+			end += message.length;
+			assertEquals(end, parser.getEnd());
+			// whatever was read too much is the start of the next message
+			byte [] remainder = parser.getRemainder();
+			assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, (int) end, (int) end + remainder.length), remainder));
+		}
+		assertFalse(parser.next(newRecorder(new StringBuilder()), false));
+		assertEquals(0, parser.getRemainder().length);
+	}
+	
+	public void testFilter() throws ParseException, URISyntaxException, IOException {
+		ReadableResource resource = getResource(new URI("classpath:/formupload.html"));
+		MultiPart full = (MultiPart) new MimeParser().parse(resource);
+		MimeParser parser = new MimeParser();
+		// only the form field "destination" is of interest
+		parser.setFilter(new PartFilter() {
+			@Override
+			public boolean accept(String path, Header...headers) {
+				return "destination".equals(MimeUtils.getFormName(headers));
+			}
+		});
+		ParsedMimeMultiPart filtered = (ParsedMimeMultiPart) parser.parse(resource);
+		assertEquals(1, filtered.getParts().size());
+		// the part numbers (and the default names) are not affected by the skipped parts
+		assertEquals("part1", filtered.getParts().get(0).getName());
+		assertSameStructure("part1", (ParsedMimePart) full.getChild("part1"), (ParsedMimePart) filtered.getChild("part1"));
+		assertEquals(toString(full.getChild("part1")), toString(filtered.getChild("part1")));
+		
+		// a multipart that is filtered out is skipped entirely, the path contains the names of the ancestors
+		final List<String> paths = new ArrayList<String>();
+		parser.setFilter(new PartFilter() {
+			@Override
+			public boolean accept(String path, Header...headers) {
+				paths.add(path);
+				return !MimeUtils.getContentType(headers).equals("multipart/mixed");
+			}
+		});
+		ParsedMimeMultiPart nested = (ParsedMimeMultiPart) parser.parse(getResource(new URI("classpath:/nested.mime")));
+		assertEquals(Arrays.asList("part0", "part1", "part1/part0", "part1/part1", "part1/level2.txt", "level1.txt"), paths);
+		assertEquals(3, nested.getParts().size());
+		assertEquals(2, ((ParsedMimeMultiPart) nested.getChild("part1")).getParts().size());
+		assertEquals(nested.getSize(), new MimeParser().parse(getResource(new URI("classpath:/nested.mime"))).getSize());
+	}
+	
+	public void testChildContentLength() throws ParseException, URISyntaxException, IOException {
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 200000) {
+			large.append("some large content that does not fit in the buffer\r\n");
+		}
+		String message = "Content-Type: multipart/mixed; boundary=\"b\"\r\n\r\n"
+			+ "--b\r\nContent-Type: text/plain\r\nContent-Length: 5\r\n\r\nfirst\r\n"
+			+ "--b\r\nContent-Type: text/plain\r\nContent-Length: " + large.length() + "\r\n\r\n" + large + "\r\n"
+			// this length is wrong, we have to scan for the boundary
+			+ "--b\r\nContent-Type: text/plain\r\nContent-Length: 1000\r\n\r\nthird\r\n"
+			+ "--b\r\nContent-Type: text/plain\r\n\r\nfourth\r\n"
+			+ "--b--\r\n";
+		byte [] bytes = message.getBytes("ASCII");
+		BytesResource resource = new BytesResource("lengths.mime", bytes);
+		MimeParser parser = new MimeParser();
+		parser.setByteNative(true);
+		ParsedMimeMultiPart part = (ParsedMimeMultiPart) parser.parse(resource);
+		// the large part was jumped over instead of read
+		assertTrue(resource.getRead() < large.length());
+		assertEquals(4, part.getParts().size());
+		assertEquals(2, part.getParts().get(1).getHeaders().length);
+		assertEquals("first", toString(part.getChild("part0")));
+		assertEquals(large.toString(), toString(part.getChild("part1")));
+		assertEquals("fourth", toString(part.getChild("part3")));
+		// the events are never jumped over, they scan for the boundaries and should end up with the same sizes
+		StringBuilder events = new StringBuilder();
+		parser.parse(IOUtils.wrap(new ByteArrayInputStream(bytes)), newRecorder(events), false);
+		StringBuilder sizes = new StringBuilder();
+		for (Part child : part) {
+			sizes.append(";end=" + ((ParsedMimePart) child).getSize());
+		}
+		sizes.append(";end=" + part.getSize());
+		assertEquals(sizes.toString(), events.toString().replaceAll("(?s);start=[^;]*;.*?(;end=)", "$1"));
+	}
+	
+	public void testHead() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "formupload.html", "nested.mime", "example2.mime", "plainpost.html" }) {
+			ReadableResource resource = getResource(new URI("classpath:/" + name));
+			byte [] bytes = IOUtils.toBytes(resource.getReadable());
+			ParsedMimePart full = new MimeParser().parse(resource);
+			ParsedMimeHead head = new MimeParser().parseHead(resource, true);
+			assertEquals(name, full.getHeaders().length, head.getHeaders().length);
+			assertEquals(name, full.getBodyOffset(), head.getBodyOffset());
+			if (full instanceof ParsedMimeMultiPart) {
+				List<Header []> expected = new ArrayList<Header []>();
+				for (Part child : (ParsedMimeMultiPart) full) {
+					// the content before the first boundary is not a child
+					if (child.getHeaders().length > 0) {
+						expected.add(child.getHeaders());
+					}
+				}
+				assertEquals(name, expected.size(), head.getChildHeaders().size());
+				for (int i = 0; i < expected.size(); i++) {
+					assertEquals(name, MimeUtils.getContentType(expected.get(i)), MimeUtils.getContentType(head.getChildHeaders().get(i)));
+					assertEquals(name, MimeUtils.getName(expected.get(i)), MimeUtils.getName(head.getChildHeaders().get(i)));
+				}
+			}
+			else {
+				assertNull(name, head.getChildHeaders());
+			}
+			byte [] body = Arrays.copyOfRange(bytes, (int) head.getBodyOffset(), bytes.length);
+			assertTrue(name, Arrays.equals(body, IOUtils.toBytes(head.getBody())));
+			// from a stream we only get the root headers and the rest of the stream
+			head = new MimeParser().parseHead(IOUtils.wrap(new ByteArrayInputStream(bytes)));
+			assertEquals(name, full.getHeaders().length, head.getHeaders().length);
+			assertTrue(name, Arrays.equals(body, IOUtils.toBytes(head.getBody())));
+		}
+	}
+	
+	public void testSpoolSize() throws ParseException, URISyntaxException, IOException {
+		MimeParser parser = new MimeParser();
+		parser.setSpoolSize(10);
+		ParsedMimeMultiPart part = (ParsedMimeMultiPart) parser.parse(getResource(new URI("classpath:/example2.mime")).getReadable());
+		assertEquals("this is the attachment text", toString(part.getChild("test.txt")));
+		// closing the root releases the spool
+		part.close();
+		try {
+			toString(part.getChild("test.txt"));
+			fail("The spool is closed");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+	
+	public void testParallelDecoding() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "nested.mime", "formupload.html" }) {
+			MultiPart multiPart = (MultiPart) new MimeParser().parse(getResource(new URI("classpath:/" + name)));
+			final List<String> expected = new ArrayList<String>();
+			addContents(multiPart, expected);
+			ExecutorService executor = Executors.newFixedThreadPool(4);
+			// a budget for a single block means the other parts spill to disk
+			MemoryBudget budget = new MemoryBudget(8192);
+			budget.setWait(0);
+			try {
+				// a window of 2 means the remaining parts wait until there is room
+				final List<String> actual = new ArrayList<String>();
+				new ParallelMimeDecoder(executor, 2, budget).decode(multiPart, new DecodedPartHandler() {
+					@Override
+					public void handle(ContentPart part, ReadableContainer<ByteBuffer> content) throws IOException {
+						actual.add(part.getName() + "=" + new String(IOUtils.toBytes(content), MimeByteParser.CHARSET));
+					}
+				});
+				assertEquals(name, expected, actual);
+				// the content is released once it is handled
+				assertEquals(0, budget.getUsed());
+			}
+			finally {
+				executor.shutdown();
+			}
+		}
+	}
+	
+	public void testChildLookup() throws ParseException, URISyntaxException, IOException {
+		String contentId = "0.8af1f9d72bfed2ff3a68037a24bb12efbd688c682e9f2d3c@apache.org";
+		for (boolean lazy : new boolean [] { false, true }) {
+			MimeParser parser = new MimeParser();
+			parser.setLazy(lazy);
+			ParsedMimeMultiPart multiPart = (ParsedMimeMultiPart) parser.parse(getResource(new URI("classpath:/multipart.mime")));
+			Part child = multiPart.getChildByContentId("cid:" + contentId);
+			assertNotNull(child);
+			assertSame(child, multiPart.getChildByContentId("<" + contentId + ">"));
+			assertSame(child, MimeUtils.getChildByContentId(multiPart, contentId));
+			assertSame(child, multiPart.getChild("part0"));
+			assertNull(multiPart.getChildByContentId("unknown@apache.org"));
+			assertEquals(Arrays.asList(child), multiPart.getChildrenByContentType("Application/XOP+XML; charset=UTF-8"));
+			assertTrue(multiPart.getChildrenByContentType("text/plain").isEmpty());
+		}
+		
+		PlainMimeMultiPart multiPart = new PlainMimeMultiPart(null, new MimeHeader("Content-Type", "multipart/related"));
+		MimeHeader firstId = new MimeHeader("Content-ID", "<first>");
+		PlainMimeEmptyPart first = new PlainMimeEmptyPart(multiPart, new MimeHeader("Content-Type", "text/plain", "name=first.txt"), firstId);
+		PlainMimeEmptyPart second = new PlainMimeEmptyPart(multiPart, new MimeHeader("Content-Type", "text/plain", "name=second.txt"));
+		multiPart.addChild(first, second);
+		assertSame(first, multiPart.getChild("first.txt"));
+		assertSame(second, multiPart.getChild("second.txt"));
+		assertSame(first, multiPart.getChildByContentId("cid:first"));
+		assertEquals(Arrays.<Part>asList(first, second), MimeUtils.getChildrenByContentType(multiPart, "text/plain"));
+		// renaming a child after it was indexed
+		first.removeHeader("Content-Type");
+		first.setHeader(new MimeHeader("Content-Type", "text/plain", "name=second.txt"));
+		assertSame(first, multiPart.getChild("second.txt"));
+		assertNull(multiPart.getChild("first.txt"));
+		second.removeHeader("Content-Type");
+		second.setHeader(new MimeHeader("Content-Type", "text/html"));
+		assertEquals(Arrays.<Part>asList(second), multiPart.getChildrenByContentType("text/html"));
+		PlainMimeEmptyPart third = new PlainMimeEmptyPart(multiPart, new MimeHeader("Content-Type", "text/xml", "name=third.xml"));
+		multiPart.addChild(third);
+		assertSame(third, multiPart.getChild("third.xml"));
+		assertEquals(Arrays.<Part>asList(third), multiPart.getChildrenByContentType("text/xml"));
+		// changing a header in place
+		firstId.setValue("<renamed>");
+		assertNull(multiPart.getChildByContentId("first"));
+		assertSame(first, multiPart.getChildByContentId("renamed"));
+		((MimeHeader) MimeUtils.getHeader("Content-Type", third.getHeaders())).addComment("charset=utf-8");
+		((MimeHeader) MimeUtils.getHeader("Content-Type", third.getHeaders())).setValue("text/csv");
+		assertSame(third, multiPart.getChild("third.xml"));
+		assertEquals(Arrays.<Part>asList(third), multiPart.getChildrenByContentType("text/csv; charset=\"utf-8\""));
+		assertTrue(multiPart.getChildrenByContentType("text/xml").isEmpty());
+	}
 	
+	public static void addContents(MultiPart multiPart, List<String> contents) throws IOException {
+		for (Part child : multiPart) {
+			if (child instanceof MultiPart) {
+				addContents((MultiPart) child, contents);
+			}
+			else {
+				ReadableContainer<ByteBuffer> readable = ((ContentPart) child).getReadable();
+				contents.add(child.getName() + "=" + (readable == null ? "" : new String(IOUtils.toBytes(readable), MimeByteParser.CHARSET)));
+			}
+		}
+	}
+	
+	private static MimeEventHandler newRecorder(final StringBuilder events) {
+		return new MimeEventHandler() {
+			@Override
+			public void onPartStart(Header[] headers, int depth) {
+				events.append(";start=" + depth + "/" + headers.length + ";");
+			}
+			@Override
+			public void onBodyBytes(ByteBuffer bytes) throws IOException {
+				byte [] data = new byte[(int) bytes.remainingData()];
+				events.append(new String(data, 0, bytes.read(data), MimeByteParser.CHARSET));
+			}
+			@Override
+			public void onTrailers(Header...headers) {
+				events.append(";trailers=" + headers.length);
+			}
+			@Override
+			public void onPartEnd(long size) {
+				events.append(";end=" + size);
+			}
+		};
+	}
+	
+	private static void append(MimeFeedParser parser, MimeFeedParser.Event event, StringBuilder events) throws IOException {
+		if (event == MimeFeedParser.Event.BODY_CHUNK) {
+			ByteBuffer chunk = parser.getChunk();
+			byte [] content = new byte[(int) chunk.remainingData()];
+			events.append(new String(content, 0, chunk.read(content), "ASCII"));
+		}
+		else if (event == MimeFeedParser.Event.TRAILERS) {
+			events.append(";trailers=" + parser.getTrailers().length);
+		}
+		else {
+			events.append(";" + event);
+		}
+	}
+	
+	private static void addEvents(List<Object> events, ParsedMimePart part, int depth, byte [] bytes, long parentOffset) {
+		long offset = parentOffset + part.getRelativeOffset();
+		if (part instanceof ParsedMimeMultiPart) {
+			for (Part child : (ParsedMimeMultiPart) part) {
+				// the preamble is not reported
+				if (((ParsedMimePart) child).getHeaders().length > 0) {
+					addEvents(events, (ParsedMimePart) child, depth + 1, bytes, offset);
+				}
+			}
+			events.add(depth);
+			events.add(part.getSize());
+			events.add(null);
+		}
+		else {
+			events.add(depth);
+			events.add(part.getSize());
+			long length = part.getSize() - part.getBodyOffset();
+			events.add(length == 0 ? null : new String(bytes, (int) (offset + part.getBodyOffset()), (int) length, MimeByteParser.CHARSET));
+		}
+	}
+	
+	public static void assertSameStructure(String path, ParsedMimePart expected, ParsedMimePart actual) {
+		assertEquals(path, expected.getClass(), actual.getClass());
+		assertEquals(path, expected.getRelativeOffset(), actual.getRelativeOffset());
+		assertEquals(path, expected.getBodyOffset(), actual.getBodyOffset());
+		assertEquals(path, expected.getSize(), actual.getSize());
+		assertEquals(path, expected.getHeaders().length, actual.getHeaders().length);
+		if (expected instanceof ParsedMimeMultiPart) {
+			Iterator<Part> actualChildren = ((ParsedMimeMultiPart) actual).iterator();
+			for (Part child : (ParsedMimeMultiPart) expected) {
+				assertTrue(path, actualChildren.hasNext());
+				assertSameStructure(path + "/" + child.getName(), (ParsedMimePart) child, (ParsedMimePart) actualChildren.next());
+			}
+			assertFalse(path, actualChildren.hasNext());
+		}
+	}
 }
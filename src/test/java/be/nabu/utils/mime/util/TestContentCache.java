@@ -0,0 +1,141 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.utils.mime.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.api.MultiPart;
+import be.nabu.utils.mime.api.Part;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeParser;
+import be.nabu.utils.mime.impl.TestMimeParser;
+
+public class TestContentCache extends TestCase {
+	
+	public void testContentCache() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "nested.mime", "formupload.html" }) {
+			List<String> expected = new ArrayList<String>();
+			TestMimeParser.addContents((MultiPart) new MimeParser().parse(TestMimeParser.getResource(new URI("classpath:/" + name))), expected);
+			// everything in memory, everything on disk, a bit of both and nothing at all
+			for (ContentCache cache : new ContentCache [] { new ContentCache(1024 * 1024), new ContentCache(0, 1024 * 1024), new ContentCache(2000, 3000), new ContentCache(10) }) {
+				MimeParser parser = new MimeParser();
+				parser.setContentCache(cache);
+				MultiPart multiPart = (MultiPart) parser.parse(TestMimeParser.getResource(new URI("classpath:/" + name)));
+				for (int i = 0; i < 3; i++) {
+					List<String> actual = new ArrayList<String>();
+					TestMimeParser.addContents(multiPart, actual);
+					assertEquals(name, expected, actual);
+				}
+				assertTrue(cache.getUsedMemory() <= cache.getMaxMemory());
+				assertTrue(cache.getUsedDisk() <= cache.getMaxDisk());
+				cache.clear();
+			}
+		}
+	}
+	
+	public void testBudget() throws ParseException, URISyntaxException, IOException {
+		List<String> expected = new ArrayList<String>();
+		TestMimeParser.addContents((MultiPart) new MimeParser().parse(TestMimeParser.getResource(new URI("classpath:/example.mime"))), expected);
+		// without memory in the budget, everything goes to disk
+		for (MemoryBudget budget : new MemoryBudget [] { new MemoryBudget(0), new MemoryBudget(Long.MAX_VALUE) }) {
+			ContentCache cache = new ContentCache(1024 * 1024, 1024 * 1024, budget);
+			MimeParser parser = new MimeParser();
+			parser.setContentCache(cache);
+			MultiPart multiPart = (MultiPart) parser.parse(TestMimeParser.getResource(new URI("classpath:/example.mime")));
+			for (int i = 0; i < 2; i++) {
+				List<String> actual = new ArrayList<String>();
+				TestMimeParser.addContents(multiPart, actual);
+				assertEquals(expected, actual);
+			}
+			assertEquals(budget.getUsed(), cache.getUsedMemory());
+			assertEquals(budget.getCapacity() == 0, cache.getUsedDisk() > 0);
+			cache.clear();
+			assertEquals(0, budget.getUsed());
+		}
+	}
+	
+	public void testHeaderChanges() throws ParseException, URISyntaxException, IOException {
+		MimeParser parser = new MimeParser();
+		parser.setContentCache(new ContentCache(1024 * 1024));
+		MultiPart multiPart = (MultiPart) parser.parse(TestMimeParser.getResource(new URI("classpath:/example.mime")));
+		ContentPart part = (ContentPart) find(multiPart, "holy_crappers_its_cicero.txt");
+		String decoded = new String(IOUtils.toBytes(part.getReadable()), "UTF-8");
+		// without the transfer encoding we get the base64 as is
+		((ModifiablePart) part).removeHeader("Content-Transfer-Encoding");
+		String encoded = new String(IOUtils.toBytes(part.getReadable()), "UTF-8");
+		assertFalse(decoded.equals(encoded));
+		// changing the header in place is picked up as well
+		MimeHeader header = new MimeHeader("Content-Transfer-Encoding", "binary");
+		((ModifiablePart) part).setHeader(header);
+		assertEquals(encoded, new String(IOUtils.toBytes(part.getReadable()), "UTF-8"));
+		header.setValue("base64");
+		assertEquals(decoded, new String(IOUtils.toBytes(part.getReadable()), "UTF-8"));
+	}
+	
+	public void testFailedRead() throws IOException {
+		final boolean [] closed = new boolean[1];
+		ReadableContainer<ByteBuffer> failing = new ReadableContainer<ByteBuffer>() {
+			@Override
+			public long read(ByteBuffer target) throws IOException {
+				throw new IOException("broken");
+			}
+			@Override
+			public void close() throws IOException {
+				closed[0] = true;
+			}
+		};
+		MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		ContentCache cache = new ContentCache(1024 * 1024, 0, budget);
+		try {
+			cache.put("key", failing);
+			fail("The read fails");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		// the content is closed and the memory released
+		assertTrue(closed[0]);
+		assertEquals(0, budget.getUsed());
+		assertNull(cache.get("key"));
+	}
+	
+	private static Part find(MultiPart multiPart, String name) {
+		for (Part child : multiPart) {
+			if (name.equals(child.getName())) {
+				return child;
+			}
+			else if (child instanceof MultiPart) {
+				Part result = find((MultiPart) child, name);
+				if (result != null) {
+					return result;
+				}
+			}
+		}
+		return null;
+	}
+}
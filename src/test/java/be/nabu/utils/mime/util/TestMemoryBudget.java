@@ -0,0 +1,121 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.utils.mime.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.impl.MimeParser;
+import be.nabu.utils.mime.impl.TestMimeParser;
+
+public class TestMemoryBudget extends TestCase {
+	
+	public void testMemoryBudget() throws ParseException, URISyntaxException, IOException {
+		ReadableResource resource = TestMimeParser.getResource(new URI("classpath:/wikipedia.mime"));
+		byte [] bytes = IOUtils.toBytes(resource.getReadable());
+		// the spool wants a lot of memory but the budget only allows a little
+		MemoryBudget budget = new MemoryBudget(5000);
+		SpoolingResource spool = new SpoolingResource(IOUtils.wrap(new ByteArrayInputStream(bytes)), 1024 * 1024, budget);
+		try {
+			TestMimeParser.assertSameStructure("wikipedia.mime", new MimeParser().parse(resource), new MimeParser().parse(spool));
+			assertTrue(spool.isSpilled());
+			assertTrue(budget.getUsed() <= 5000);
+			assertTrue(Arrays.equals(bytes, IOUtils.toBytes(spool.getReadable())));
+		}
+		finally {
+			spool.close();
+		}
+		assertEquals(0, budget.getUsed());
+		
+		// the same for the spilling container
+		SpillingByteContainer container = new SpillingByteContainer(budget);
+		try {
+			for (int i = 0; i < 3; i++) {
+				container.write(IOUtils.wrap(bytes, true));
+			}
+			assertTrue(container.isSpilled());
+			assertEquals(bytes.length * 3, container.getSize());
+			byte [] read = IOUtils.toBytes(container.getReadable());
+			for (int i = 0; i < 3; i++) {
+				assertTrue(Arrays.equals(bytes, Arrays.copyOfRange(read, i * bytes.length, (i + 1) * bytes.length)));
+			}
+		}
+		finally {
+			container.close();
+		}
+		assertEquals(0, budget.getUsed());
+		// nothing left, so a blocking reservation that does fit succeeds immediately
+		budget.reserve(5000, 10);
+		assertFalse(budget.tryReserve(1));
+		try {
+			budget.reserve(1, 10);
+			fail("The budget is exhausted");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		budget.release(5000);
+	}
+	
+	public void testBackPressure() throws IOException, InterruptedException {
+		final MemoryBudget budget = new MemoryBudget(SpillingByteContainer.BLOCK_SIZE);
+		budget.setWait(5000);
+		budget.reserve(SpillingByteContainer.BLOCK_SIZE, 0);
+		Thread releaser = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				}
+				catch (InterruptedException e) {
+					// continue
+				}
+				budget.release(SpillingByteContainer.BLOCK_SIZE);
+			}
+		});
+		releaser.start();
+		// the container waits for the memory instead of spilling straight away
+		SpillingByteContainer container = new SpillingByteContainer(budget);
+		try {
+			container.write(IOUtils.wrap(new byte[100], true));
+			assertFalse(container.isSpilled());
+			assertEquals(SpillingByteContainer.BLOCK_SIZE, budget.getUsed());
+		}
+		finally {
+			container.close();
+			releaser.join();
+		}
+		// without waiting, it spills
+		budget.setWait(0);
+		budget.reserve(SpillingByteContainer.BLOCK_SIZE, 0);
+		container = new SpillingByteContainer(budget);
+		try {
+			container.write(IOUtils.wrap(new byte[100], true));
+			assertTrue(container.isSpilled());
+		}
+		finally {
+			container.close();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.utils.mime.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.impl.MimeParser;
+import be.nabu.utils.mime.impl.TestMimeParser;
+
+public class TestSpooling extends TestCase {
+	
+	public void testSpooling() throws ParseException, URISyntaxException, IOException {
+		for (String name : new String [] { "example.mime", "example2.mime", "formupload.html", "chunked.html", "wikipedia.mime", "nested.mime" }) {
+			ReadableResource resource = TestMimeParser.getResource(new URI("classpath:/" + name));
+			byte [] bytes = IOUtils.toBytes(resource.getReadable());
+			// a small memory size so most of it ends up on disk
+			SpoolingResource spool = new SpoolingResource(IOUtils.wrap(new ByteArrayInputStream(bytes)), 100);
+			try {
+				TestMimeParser.assertSameStructure(name, new MimeParser().parse(resource), new MimeParser().parse(spool));
+				assertTrue(name, spool.isSpilled());
+				assertTrue(name, Arrays.equals(bytes, IOUtils.toBytes(spool.getReadable())));
+				// reads that cross the tiers
+				assertTrue(name, Arrays.equals(Arrays.copyOfRange(bytes, 50, bytes.length), IOUtils.toBytes(spool.getReadable(50))));
+			}
+			finally {
+				spool.close();
+			}
+		}
+	}
+}
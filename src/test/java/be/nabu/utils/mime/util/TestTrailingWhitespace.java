@@ -0,0 +1,46 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.utils.mime.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import be.nabu.utils.io.IOUtils;
+
+public class TestTrailingWhitespace extends TestCase {
+	
+	public void testTrailingWhitespace() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TrailingWhitespaceContainer trimmer = new TrailingWhitespaceContainer(IOUtils.wrap(output), 4);
+		trimmer.write(IOUtils.wrap("a \r\nb".getBytes("ASCII"), true));
+		trimmer.write(IOUtils.wrap(" \t\r\n\r\n".getBytes("ASCII"), true));
+		// only the last 4 are held back
+		assertEquals(4, trimmer.getTrailingWhitespace());
+		assertEquals("a \r\nb \t", new String(output.toByteArray(), "ASCII"));
+		trimmer.release();
+		assertEquals(0, trimmer.getTrailingWhitespace());
+		assertEquals("a \r\nb \t\r\n\r\n", new String(output.toByteArray(), "ASCII"));
+		// it can be reused to only count, for chars as well
+		trimmer.reset(null, 10);
+		trimmer.writeChars(IOUtils.wrap("content\r\n\r\n".toCharArray(), true));
+		assertEquals(4, trimmer.getTrailingWhitespace());
+		trimmer.reset(null, 2);
+		trimmer.writeBytes(IOUtils.wrap("content \r\n".getBytes("ASCII"), true));
+		assertEquals(2, trimmer.getTrailingWhitespace());
+	}
+}